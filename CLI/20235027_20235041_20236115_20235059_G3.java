@@ -3,82 +3,753 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.zip.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.MappedByteBuffer;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 
  class Parser {
-    String commandName;
-    String args[];
+    // Reused for every line, so parsing only allocates the strings and arrays of the result
+    private final StringBuilder token = new StringBuilder();
+    private final List<String> words = new ArrayList<>();
+    private final List<String> patterns = new ArrayList<>();
+    private final CommandLine commandLine = new CommandLine();
 
-    // Holds the file name that the output should be redirected to (if any).
-   public String redirectFile = null;
+    // Glob state of the current word: an unquoted * ? [ was seen, and where the quoted or
+    // escaped glob characters are (they must match literally)
+    private boolean globbing = false;
+    private int[] quotedGlobChars = new int[8];
+    private int quotedGlobCount = 0;
 
-   // Determines whether the output should be appended to an existing file (>>) 
-   // or overwrite the file content (>).
-   public boolean appendMode = false;
+    // Where syntax errors are reported (stderr in batch mode)
+    PrintStream err = System.out;
 
-    
+    // Redirection waiting for its file name
+    private static final int NONE = 0, INPUT = 1, OUTPUT = 2, APPEND = 3, ERRORS = 4, ERRORS_APPEND = 5;
+
+    /*
+     Single pass over the line:
+       - spaces separate words, except inside quotes
+       - '...' keeps everything as is, "..." only understands \" and \\ , a \ outside quotes
+         takes the next char literally
+       - | < > >> 2> 2>> are operators when they are not quoted
+       - a & at the very end runs the whole line in the background
+       - a word with an unquoted * ? or [ is also kept as a glob pattern, expanded when the
+         command runs (see Glob)
+     The result goes into the reusable CommandLine descriptor (see getCommandLine).
+     Returns false for an empty line or a syntax error.
+    */
  public boolean parse(String command) {
     //  Check if the command is null or empty
     if (command == null ) {
         return false;
     }
-    else if(command.trim().isEmpty()){
+
+    commandLine.reset();
+    words.clear();
+    patterns.clear();
+    clearToken();
+    boolean inToken = false;        // true once a word started, even an empty one like ""
+    int redirect = NONE;
+    CommandLine.Command current = commandLine.add();
+    int length = command.length();
+
+    for (int i = 0; i < length; i++) {
+        char c = command.charAt(i);
+
+        if (c == '\'' || c == '"') {
+            // Quoted part of a word
+            int close = i + 1;
+            while (close < length && command.charAt(close) != c) {
+                if (c == '"' && command.charAt(close) == '\\' && close + 1 < length
+                        && (command.charAt(close + 1) == '"' || command.charAt(close + 1) == '\\')) {
+                    appendQuoted(command.charAt(close + 1));
+                    close += 2;
+                } else {
+                    appendQuoted(command.charAt(close));
+                    close++;
+                }
+            }
+            if (close >= length) {
+                err.println("Error: missing closing quote (" + c + ")");
+                return false;
+            }
+            inToken = true;
+            i = close;
+        } else if (c == '\\') {
+            if (i + 1 < length) {
+                appendQuoted(command.charAt(++i));
+            }
+            inToken = true;
+        } else if (c == ' ' || c == '\t') {
+            if (inToken) {
+                redirect = endWord(current, redirect);
+                inToken = false;
+            }
+        } else if (c == '&') {
+            // Only allowed as the last thing on the line
+            if (!command.substring(i + 1).isBlank()) {
+                err.println("Error: & is only allowed at the end of the line");
+                return false;
+            }
+            if (inToken) {
+                redirect = endWord(current, redirect);
+                inToken = false;
+            }
+            commandLine.background = true;
+            break;
+        } else if (c == '|' || c == '<' || c == '>') {
+            // "2>" is an operator only when the 2 is a word by itself
+            boolean errors = c == '>' && inToken && token.length() == 1 && token.charAt(0) == '2'
+                    && (i == 0 || command.charAt(i - 1) == '2');
+            if (errors) {
+                clearToken();
+                inToken = false;
+            } else if (inToken) {
+                redirect = endWord(current, redirect);
+                inToken = false;
+            }
+            if (redirect != NONE) {
+                err.println("Error: Missing file name after redirection.");
+                return false;
+            }
+
+            if (c == '|') {
+                if (!finishCommand(current)) {
+                    err.println("Error: Missing command before |");
+                    return false;
+                }
+                current = commandLine.add();
+            } else if (c == '<') {
+                redirect = INPUT;
+            } else {
+                boolean twice = i + 1 < length && command.charAt(i + 1) == '>';
+                if (twice) {
+                    i++;
+                }
+                redirect = errors ? (twice ? ERRORS_APPEND : ERRORS) : (twice ? APPEND : OUTPUT);
+            }
+        } else {
+            token.append(c);
+            globbing |= (c == '*' || c == '?' || c == '[');
+            inToken = true;
+        }
+    }
+
+    if (inToken) {
+        redirect = endWord(current, redirect);
+    }
+    if (redirect != NONE) {
+        err.println("Error: Missing file name after redirection.");
+        return false;
+    }
+    if (!finishCommand(current)) {
+        // A line of spaces is just empty, "cmd |" is an error
+        if (commandLine.size() > 1) {
+            err.println("Error: Missing command after |");
+        } else if (current.hasRedirection()) {
+            err.println("Error: Missing command");
+        }
         return false;
     }
+    return true;
+}
+
+    // A quoted or escaped char: never a glob character
+    private void appendQuoted(char c) {
+        if (isGlobChar(c)) {
+            if (quotedGlobCount == quotedGlobChars.length) {
+                quotedGlobChars = Arrays.copyOf(quotedGlobChars, quotedGlobCount * 2);
+            }
+            quotedGlobChars[quotedGlobCount++] = token.length();
+        }
+        token.append(c);
+    }
 
-    //  Split by spaces
-    String[] tokens = command.trim().split("\\s+");
-    commandName = tokens[0];
+    private static boolean isGlobChar(char c) {
+        return c == '*' || c == '?' || c == '[' || c == ']' || c == '{' || c == '}' || c == '\\';
+    }
 
-    // Initial values in case there's no redirection
-    redirectFile = null;
-    appendMode = false;
+    private void clearToken() {
+        token.setLength(0);
+        globbing = false;
+        quotedGlobCount = 0;
+    }
 
-    //  Count args without redirection
-    int argCount = 0;
-    for (int i = 1; i < tokens.length; i++) {
-        if (tokens[i].equals(">") || tokens[i].equals(">>")) break;
-        argCount++;
+    // The word as a PathMatcher glob: quoted glob chars are escaped, and so are { } which sh
+    // does not treat as a glob
+    private String globPattern(String word) {
+        StringBuilder glob = new StringBuilder(word.length() + 8);
+        int quoted = 0;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            boolean literal = quoted < quotedGlobCount && quotedGlobChars[quoted] == i;
+            if (literal) {
+                quoted++;
+            }
+            if (literal || c == '{' || c == '}') {
+                glob.append('\\');
+            }
+            glob.append(c);
+        }
+        return glob.toString();
     }
 
-    //  Create args array
-    args = new String[argCount];
-    for (int i = 1; i <= argCount; i++) {
-        args[i - 1] = tokens[i];
+    // A word is complete: it is either the file of a pending redirection or a normal word
+    private int endWord(CommandLine.Command current, int redirect) {
+        String word = token.toString();
+        String pattern = globbing ? globPattern(word) : null;
+        clearToken();
+        switch (redirect) {
+            case INPUT:
+                current.inputFile = word;
+                break;
+            case OUTPUT:
+            case APPEND:
+                current.outputFile = word;
+                current.append = redirect == APPEND;
+                break;
+            case ERRORS:
+            case ERRORS_APPEND:
+                current.errorFile = word;
+                current.errorAppend = redirect == ERRORS_APPEND;
+                break;
+            default:
+                words.add(word);
+                patterns.add(pattern);
+                break;
+        }
+        return NONE;
     }
 
-    //  Check for redirection (if exists)
-    for (int i = 1; i < tokens.length; i++) {
-        if (tokens[i].equals(">") || tokens[i].equals(">>")) {
-            appendMode = tokens[i].equals(">>");
-            if (i + 1 < tokens.length) {
-                redirectFile = tokens[i + 1];
-            } else {
-                System.out.println("Error: Missing file name after redirection.");
-                return false;
+    // Moves the collected words into the command, false if there was no word at all
+    private boolean finishCommand(CommandLine.Command current) {
+        if (words.isEmpty()) {
+            return false;
+        }
+        current.name = words.get(0);
+        current.args = new String[words.size() - 1];
+        for (int i = 1; i < words.size(); i++) {
+            current.args[i - 1] = words.get(i);
+            if (patterns.get(i) != null) {
+                if (current.patterns == null) {
+                    current.patterns = new String[current.args.length];
+                }
+                current.patterns[i - 1] = patterns.get(i);
             }
-            break;
         }
+        words.clear();
+        patterns.clear();
+        return true;
     }
 
-    return true;
-}
+    // The result of the last successful parse. It is reused by the next call to parse.
+    public CommandLine getCommandLine(){
+        return commandLine;
+    }
 
-    
     public String getCommandName(){
-        return commandName;
+        return commandLine.get(0).name;
     }
     
     public String[] getArgs(){
-        return args;
+        return commandLine.get(0).args;
+    }
+}
+
+
+// A parsed command line: the commands of a pipeline (cmd1 | cmd2 | ...) with their redirections.
+// A line without "|" has a single command. The Command objects are pooled and reused by the
+// parser from one line to the next.
+class CommandLine {
+
+    static class Command {
+        String name;
+        String[] args;
+        String[] patterns;      // glob of each argument (null for a plain word), null if there is none
+        String inputFile;       // < file
+        String outputFile;      // > file or >> file
+        boolean append;
+        String errorFile;       // 2> file or 2>> file
+        boolean errorAppend;
+
+        void clear() {
+            name = null;
+            args = null;
+            patterns = null;
+            inputFile = null;
+            outputFile = null;
+            append = false;
+            errorFile = null;
+            errorAppend = false;
+        }
+
+        boolean hasRedirection() {
+            return inputFile != null || outputFile != null || errorFile != null;
+        }
+    }
+
+    private final List<Command> commands = new ArrayList<>();
+    private int size = 0;
+
+    // The line ended with &
+    boolean background = false;
+
+    void reset() {
+        size = 0;
+        background = false;
+    }
+
+    // A copy that does not share the pooled Command objects, for a command line that keeps
+    // running (a background job) while the parser moves on to the next line
+    CommandLine copy() {
+        CommandLine copy = new CommandLine();
+        copy.background = background;
+        for (int i = 0; i < size; i++) {
+            Command from = commands.get(i);
+            Command to = copy.add();
+            to.name = from.name;
+            to.args = from.args.clone();
+            to.patterns = (from.patterns != null) ? from.patterns.clone() : null;
+            to.inputFile = from.inputFile;
+            to.outputFile = from.outputFile;
+            to.append = from.append;
+            to.errorFile = from.errorFile;
+            to.errorAppend = from.errorAppend;
+        }
+        return copy;
+    }
+
+    Command add() {
+        if (size == commands.size()) {
+            commands.add(new Command());
+        }
+        Command command = commands.get(size++);
+        command.clear();
+        return command;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Command get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return commands.get(index);
+    }
+}
+
+// Glob expansion of the words the Parser marked (unquoted *, ?, [...] and **).
+// A pattern is compiled once into a PathMatcher and tested while a DirectoryStream is read,
+// so expanding *.tmp is one scan of the directory and only the matches are kept. A pattern
+// with wildcards in a directory part, or with **, walks (lazily) the tree below its literal
+// prefix. Names starting with a dot only match a pattern that starts with a dot, and a
+// pattern that matches nothing stays as it was typed, like in sh.
+class Glob {
+
+    // The matches of one pattern as they are found, written the way the pattern was
+    // (a relative pattern gives relative names). close() releases the directory stream.
+    static class Matches implements Iterator<String>, Closeable {
+        private final String prefix;
+        private final Stream<Path> paths;
+        private final Iterator<Path> iterator;
+
+        Matches(String prefix, Stream<Path> paths) {
+            this.prefix = prefix;
+            this.paths = paths;
+            this.iterator = paths.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return iterator.hasNext();
+            } catch (DirectoryIteratorException | UncheckedIOException e) {
+                // a directory that cannot be read has no matches
+                return false;
+            }
+        }
+
+        @Override
+        public String next() {
+            return prefix + iterator.next();
+        }
+
+        @Override
+        public void close() {
+            paths.close();
+        }
+    }
+
+    static Matches matches(Path base, String pattern) {
+        String[] segments = pattern.split("/", -1);
+        int literal = 0;
+        while (literal < segments.length - 1 && !hasWildcard(segments[literal])) {
+            literal++;
+        }
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < literal; i++) {
+            prefix.append(unescape(segments[i])).append('/');
+        }
+        String rest = String.join("/", Arrays.asList(segments).subList(literal, segments.length));
+        Path dir = (prefix.length() == 0) ? base : base.resolve(prefix.toString());
+
+        try {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + rest);
+            boolean dotFiles = rest.startsWith(".") || rest.contains("/.");
+            if (literal == segments.length - 1 && !rest.contains("**")) {
+                // One directory: its stream is filtered on the names, nothing else is read
+                DirectoryStream<Path> stream = Files.newDirectoryStream(dir, path -> {
+                    Path name = path.getFileName();
+                    return (dotFiles || !name.toString().startsWith(".")) && matcher.matches(name);
+                });
+                Stream<Path> names = StreamSupport.stream(stream.spliterator(), false).map(Path::getFileName);
+                return new Matches(prefix.toString(), names.onClose(() -> closeQuietly(stream)));
+            }
+
+            // "**/x" also matches x at the top, like globstar
+            PathMatcher top = rest.startsWith("**/") ? FileSystems.getDefault().getPathMatcher("glob:" + rest.substring(3)) : null;
+            int depth = rest.contains("**") ? Integer.MAX_VALUE : segments.length - literal;
+            Stream<Path> walk = Files.walk(dir, depth)
+                    .filter(path -> !path.equals(dir))
+                    .map(dir::relativize)
+                    .filter(path -> (dotFiles || !isHidden(path)) && (matcher.matches(path) || (top != null && top.matches(path))));
+            return new Matches(prefix.toString(), walk);
+        } catch (IOException | PatternSyntaxException e) {
+            // no such directory, or not a valid pattern: no match
+            return new Matches(prefix.toString(), Stream.empty());
+        }
+    }
+
+    // Every word with its matches (sorted per pattern) in place of the pattern, for the
+    // commands that take a String[]
+    static String[] expand(Path base, String[] words, String[] patterns) {
+        List<String> expanded = new ArrayList<>(words.length);
+        for (int i = 0; i < words.length; i++) {
+            if (patterns[i] == null) {
+                expanded.add(words[i]);
+                continue;
+            }
+            int start = expanded.size();
+            try (Matches matches = matches(base, patterns[i])) {
+                while (matches.hasNext()) {
+                    expanded.add(matches.next());
+                }
+            }
+            if (expanded.size() == start) {
+                expanded.add(words[i]);
+            } else {
+                Collections.sort(expanded.subList(start, expanded.size()));
+            }
+        }
+        return expanded.toArray(new String[0]);
+    }
+
+    private static boolean hasWildcard(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?' || c == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String unescape(String segment) {
+        if (segment.indexOf('\\') < 0) {
+            return segment;
+        }
+        StringBuilder plain = new StringBuilder(segment.length());
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '\\' && i + 1 < segment.length()) {
+                c = segment.charAt(++i);
+            }
+            plain.append(c);
+        }
+        return plain.toString();
+    }
+
+    private static boolean isHidden(Path relative) {
+        for (Path part : relative) {
+            if (part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing was written, nothing to lose
+        }
+    }
+}
+
+
+// The arguments of a command with their globs expanded on the fly: a command that takes its
+// paths one at a time (rm, cat, grep...) never holds the matches of *.tmp in memory, however
+// big the directory is. A word whose glob matches nothing is returned as it was typed.
+// Unsorted, the matches come in directory order (rm, rmdir, touch do not care); sorted, the
+// matches of one pattern are read and sorted when the pattern is reached, like in sh, so only
+// one pattern's matches are in memory at a time (cat part* must keep the parts in order).
+class Arguments implements Iterator<String>, Closeable {
+    private final Path base;
+    private final String[] words;
+    private final String[] patterns;
+    private final boolean sorted;
+    private int index = 0;
+    private Iterator<String> matches;   // the rest of the matches of the current pattern
+    private Glob.Matches open;          // their directory stream, when they are read on the fly
+    private String upcoming;
+    private int upcomingWord;
+    private boolean upcomingExpanded;
+    private int word = -1;
+    private boolean expanded;
+    private boolean[] options;          // words that are options or their values, never returned
+
+    Arguments(Path base, String[] words, String[] patterns) {
+        this(base, words, patterns, false);
+    }
+
+    Arguments(Path base, String[] words, String[] patterns, boolean sorted) {
+        this.base = base;
+        this.words = words;
+        this.patterns = patterns;
+        this.sorted = sorted;
+    }
+
+    // The words as they were typed, before any expansion (for the options)
+    String[] words() {
+        return words;
+    }
+
+    // Word i with its glob expanded (the first match), for the value of an option
+    String option(int i) {
+        if (patterns == null || patterns[i] == null) {
+            return words[i];
+        }
+        return Glob.expand(base, new String[] {words[i]}, new String[] {patterns[i]})[0];
+    }
+
+    // Marks word i as an option or the value of one: the iteration skips it
+    void skip(int i) {
+        if (options == null) {
+            options = new boolean[words.length];
+        }
+        options[i] = true;
+    }
+
+    // Whether a word is left once the options are skipped
+    boolean hasOperands() {
+        for (int i = 0; i < words.length; i++) {
+            if (options == null || !options[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (upcoming == null) {
+            if (matches != null) {
+                if (matches.hasNext()) {
+                    upcoming = matches.next();
+                    upcomingExpanded = true;
+                    return true;
+                }
+                close();
+                continue;
+            }
+            if (index == words.length) {
+                return false;
+            }
+            int i = index++;
+            if (options != null && options[i]) {
+                continue;
+            }
+            upcomingWord = i;
+            if (patterns != null && patterns[i] != null) {
+                Glob.Matches found = Glob.matches(base, patterns[i]);
+                if (found.hasNext()) {
+                    if (sorted) {
+                        List<String> all = new ArrayList<>();
+                        while (found.hasNext()) {
+                            all.add(found.next());
+                        }
+                        found.close();
+                        Collections.sort(all);
+                        matches = all.iterator();
+                    } else {
+                        open = found;
+                        matches = found;
+                    }
+                    continue;
+                }
+                found.close();
+            }
+            upcoming = words[i];
+            upcomingExpanded = false;
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String next = upcoming;
+        word = upcomingWord;
+        expanded = upcomingExpanded;
+        upcoming = null;
+        return next;
+    }
+
+    // Whether the last argument returned by next() is the match of a glob
+    boolean expanded() {
+        return expanded;
+    }
+
+    // Index in words() of the word the last argument returned by next() comes from
+    int word() {
+        return word;
+    }
+
+    @Override
+    public void close() {
+        matches = null;
+        if (open != null) {
+            open.close();
+            open = null;
+        }
     }
 }
 
 class Terminal {
+    // Size of the buffers used when streaming file contents
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // Raw channel on the process stdout, used to stream file contents without going through Strings.
+    // It is never closed, closing it would close the real stdout.
+    static final FileChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    // Threads that run the stages of pipelines
+    static final ExecutorService PIPELINE_THREADS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Above this many names a sorted ls spills to temp files instead of keeping them all on the heap
+    static final int LS_MAX_NAMES_IN_MEMORY = 200_000;
+
+    // Read buffer for scripts coming from stdin
+    static final int BATCH_READ_BUFFER = 1024 * 1024;
+
     Parser parser = new Parser();
+
+    // Where error messages go: the terminal itself in interactive mode, stderr in batch mode
+    PrintStream err = System.out;
+
+    // Exit status of the last command: 0 ok, 1 failed, 2 bad command line, 127 unknown command
+    int status = 0;
+
+    // Set by "exit", ends the interactive loop or the script
+    boolean exitRequested = false;
+
+    // --trace: print the time and I/O of every command after it ran
+    boolean trace = false;
+
+    // Background jobs of this session (shared with the forks), and the progress and
+    // cancellation flag of the job this terminal runs (NONE in the foreground)
+    JobTable jobs = new JobTable();
+    JobControl control = JobControl.NONE;
+
     private Path currentPath = Paths.get(System.getProperty("user.dir"));
     private final Path homePath = Paths.get(System.getProperty("user.home"));
 
@@ -88,7 +759,7 @@ class Terminal {
 
     public void cd(String[] args) {
         if (args.length > 1) {
-            System.out.println("Error: too many arguments");
+            fail("Error: too many arguments");
             return;
         }
 
@@ -122,100 +793,238 @@ class Terminal {
                 currentPath = newPath;
                 return;
             } else {
-                System.out.println("Error: Directory does not exist");
+                fail("Error: Directory does not exist");
                 return;
             }
             
         } catch (Exception e) {
-            System.out.println("Error: "+ e.getMessage());
+            fail("Error: "+ e.getMessage());
         }
         
     }
 
-    public String ls()
+    public void ls(String[] args, OutputSink out) throws IOException
     {
-        // Check if the current directory path exists
-        if (!Files.exists(currentPath))
+        boolean unsorted = false;
+        boolean longFormat = false;
+        int jobs = 1;
+        Path dir = currentPath;
+
+        // Options: -f (unsorted, streamed), -l (long format), --jobs N (attributes in parallel), then a directory
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("--jobs") && i + 1 < args.length)
+            {
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    fail("Error: --jobs needs a number");
+                    return;
+                }
+            }
+            else if (arg.startsWith("-") && arg.length() > 1 && !arg.startsWith("--"))
+            {
+                for (char option : arg.substring(1).toCharArray())
+                {
+                    if (option == 'f') {
+                        unsorted = true;
+                    } else if (option == 'l') {
+                        longFormat = true;
+                    } else {
+                        fail("Error: ls: unknown option -" + option);
+                        return;
+                    }
+                }
+            }
+            else
+            {
+                dir = resolvePath(arg);
+            }
+        }
+
+        // Check if the directory path exists
+        if (!Files.exists(dir))
         {
-            System.out.println("Error:directory does not exist");
-            return "";
+            fail("Error:directory does not exist");
+            return;
         }
 
-        // Ensure that the current path is actually a directory
-        if (!Files.isDirectory(currentPath))
+        // Ensure that the path is actually a directory
+        if (!Files.isDirectory(dir))
         {
-            System.out.println("Error:path is not a directory");
-            return "";
+            fail("Error:path is not a directory");
+            return;
         }
 
-        try (var paths = Files.list(currentPath))
+        LongListing listing = longFormat ? new LongListing(dir, out, jobs) : null;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
         {
-            // Convert each Path to its file name, sort them alphabetically, and join them into one string with new lines
-            return paths.map(p -> p.getFileName().toString()).sorted().collect(Collectors.joining("\n"));
+            if (unsorted)
+            {
+                // -f: every name is written as soon as the directory stream returns it
+                for (Path entry : entries)
+                {
+                    listName(entry.getFileName().toString(), listing, out);
+                }
+            }
+            else
+            {
+                // Sorted: small directories sort in memory, huge ones spill sorted runs to temp files
+                try (ExternalSorter sorter = new ExternalSorter(Comparator.naturalOrder(), LS_MAX_NAMES_IN_MEMORY))
+                {
+                    for (Path entry : entries)
+                    {
+                        sorter.add(entry.getFileName().toString());
+                    }
+                    sorter.forEachSorted(name -> listName(name, listing, out));
+                }
+            }
+            if (listing != null)
+            {
+                listing.finish();
+            }
         } 
-        catch (IOException error)
+        catch (IOException | DirectoryIteratorException error)
         {
-            System.out.println("Error reading directory: " + error.getMessage());
-            return "";
+            fail("Error reading directory: " + error.getMessage());
         }
     }
 
-public void cp(String[] args) 
-{
-    // Check if user passed at least 2 arguments (source and destination)
-    if (args.length < 2) 
-    {
-        System.out.println("Error: cp requires exactly two arguments");
-        return;
+    private static void listName(String name, LongListing listing, OutputSink out) throws IOException {
+        if (listing != null) {
+            listing.add(name);
+        } else {
+            out.println(name);
+        }
     }
 
+// cp [-r] [-u] [--checksum] [--delete] [--verify] [--resume] [--sparse] [--jobs N] source destination
+// -u only copies files whose size or modification time differ from the destination
+// (--checksum compares the content instead of the time), --delete removes what is in
+// the destination but not in the source, --verify reads every copy back and compares its
+// CRC-32C with the source. "sync" is cp -r -u.
+// Large files are copied in ranges by several workers (LargeFileCopier): --resume keeps a
+// journal, so a copy interrupted under --resume goes on with the next cp --resume; --sparse
+// leaves the zero blocks as holes.
+public void cp(Arguments arguments, OutputSink out) throws IOException
+{
     boolean recursive = false;
-    int startIndex = 0;
+    boolean update = false;
+    boolean checksum = false;
+    boolean deleteExtraneous = false;
+    boolean verify = false;
+    boolean resume = false;
+    boolean sparse = false;
+    int jobs = CopyEngine.DEFAULT_JOBS;
 
-    // Check if the first argument is "-r" (recursive copy)
-    if (args[0].equals("-r")) 
+    // Separate the options (-r, --jobs N) from the source and destination. The options come
+    // from the words as typed, what a glob expands to is never an option
+    String[] args = arguments.words();
+    for (int i = 0; i < args.length; i++) 
     {
-        recursive = true;
-        startIndex = 1;
-
-        // After "-r", there must be exactly 2 arguments (source and destination)
-        if (args.length - startIndex != 2) 
-        {
-            System.out.println("Error: cp -r requires exactly two arguments");
+        String arg = args[i];
+        try {
+            if (arg.equals("-r")) {
+                recursive = true;
+            } else if (arg.equals("-u")) {
+                update = true;
+            } else if (arg.equals("-ru") || arg.equals("-ur")) {
+                recursive = true;
+                update = true;
+            } else if (arg.equals("--checksum")) {
+                update = true;
+                checksum = true;
+            } else if (arg.equals("--delete")) {
+                deleteExtraneous = true;
+            } else if (arg.equals("--verify")) {
+                verify = true;
+            } else if (arg.equals("--resume")) {
+                resume = true;
+            } else if (arg.equals("--sparse")) {
+                sparse = true;
+            } else if (arg.equals("--jobs") && i + 1 < args.length) {
+                arguments.skip(i);
+                jobs = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+            } else {
+                continue;
+            }
+            arguments.skip(i);
+        } catch (NumberFormatException e) {
+            fail("Error: --jobs needs a number");
             return;
         }
-    } 
-    else if (args.length != 2) 
+    }
+
+    // No more than three operands are read: a glob that matches a million files is an error
+    // right away, not after listing them all
+    List<String> operands = new ArrayList<>();
+    while (operands.size() < 3 && arguments.hasNext())
+    {
+        operands.add(arguments.next());
+    }
+
+    if (jobs < 1) 
+    {
+        fail("Error: --jobs must be at least 1");
+        return;
+    }
+
+    // There must be exactly 2 operands (source and destination)
+    if (operands.size() != 2) 
+    {
+        fail(recursive ? "Error: cp -r requires exactly two arguments" : "Error: cp requires exactly two arguments");
+        return;
+    }
+
+    if (deleteExtraneous && !recursive)
     {
-        System.out.println("Error: cp requires exactly two arguments");
+        fail("Error: --delete only works with cp -r");
         return;
     }
 
     // Resolve source and destination paths relative to currentPath
-    Path source = currentPath.resolve(args[startIndex]).normalize().toAbsolutePath();
-    Path destination = currentPath.resolve(args[startIndex + 1]).normalize().toAbsolutePath();
+    Path source = currentPath.resolve(operands.get(0)).normalize().toAbsolutePath();
+    Path destination = currentPath.resolve(operands.get(1)).normalize().toAbsolutePath();
 
     // Check if source exists
     if (!Files.exists(source)) 
     {
-        System.out.println("Error: Source not found");
+        fail("Error: Source not found");
         return;
     }
 
+    LargeFileCopier largeFiles = new LargeFileCopier(jobs);
+    largeFiles.setResume(resume);
+    largeFiles.setSparse(sparse);
+    largeFiles.setControl(control);
+
     // Perform copy operation
     try {
         if (recursive) {
-            copyDirectoryRecursively(source, destination);
+            CopyEngine engine = new CopyEngine(jobs, largeFiles);
+            if (update) {
+                engine.setUpdateOnly(checksum);
+            }
+            engine.setDeleteExtraneous(deleteExtraneous);
+            engine.setVerify(verify);
+            engine.setControl(control);
+            copyDirectoryRecursively(source, destination, engine, out);
         } else {
-            copyFile(source, destination);
+            copyFile(source, destination, update, checksum, largeFiles);
+            if (verify && status == 0 && !HashEngine.sameContent(source, destination)) {
+                fail("cp: " + operands.get(1) + ": verification failed, the copy differs from the source");
+            }
         }
     } catch (IOException error) {
-        System.out.println("Error: " + error.getMessage());
+        fail(control.isCancelled() ? "cp: cancelled" : "Error: " + error.getMessage());
     }
 }
 
 
-private void copyDirectoryRecursively(Path source, Path destination) throws IOException 
+private void copyDirectoryRecursively(Path source, Path destination, CopyEngine engine, OutputSink out) throws IOException 
 {
     // If destination directory does not exist, create it
     if (!Files.exists(destination)) 
@@ -223,34 +1032,26 @@ private void copyDirectoryRecursively(Path source, Path destination) throws IOEx
         Files.createDirectories(destination);
     }
 
-    // Walk through all files and subdirectories inside the source folder
-    Files.walkFileTree(source, new SimpleFileVisitor<Path>() 
+    // Directories are created while walking, the files are copied by the workers
+    try {
+        engine.copyTree(source, destination);
+    } finally {
+        engine.shutdown();
+    }
+
+    out.println(engine.summary());
+    if (!engine.getErrors().isEmpty())
+    {
+        status = 1;
+    }
+    if (control.isCancelled())
     {
+        fail("cp: cancelled");
+    }
+}
 
-        // Called before visiting each subdirectory
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException 
-        {
-            // Create the corresponding directory in the destination
-            Path targetDir = destination.resolve(source.relativize(dir));
-            Files.createDirectories(targetDir);
-            return FileVisitResult.CONTINUE;
-        }
-
-        // Called for each file found in the source folder
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException 
-        {
-            // Copy each file to the destination, keeping the relative structure
-            Path targetFile = destination.resolve(source.relativize(file));
-            Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
-            return FileVisitResult.CONTINUE;
-        }
-    });
-}
 
-
-private void copyFile(Path source, Path destination) throws IOException
+private void copyFile(Path source, Path destination, boolean update, boolean checksum, LargeFileCopier largeFiles) throws IOException
 {
     // If the parent directory of destination does not exist, create it
     Path parent = destination.getParent();
@@ -260,82 +1061,147 @@ private void copyFile(Path source, Path destination) throws IOException
 
     // Check if the source is a file (not a directory)
     if (Files.isDirectory(source)) {
-        System.out.println("Error: For cp, both must be files");
+        fail("Error: For cp, both must be files");
         return;
     }
 
-    // Copy the file, replacing if it already exists
-    Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
-}
-
+    // The same file under another name (itself, a hard link, a symlink): copying would truncate it
+    if (LargeFileCopier.isSameFile(source, destination)) {
+        fail("cp: '" + source.getFileName() + "' and '" + destination.getFileName() + "' are the same file");
+        return;
+    }
 
-    public void rmdir(String[] args) {
-        /*
-         removes all empty directories
-         path => remove the given directory is it's empty
-        */
-        if (args.length==0) {
-            System.out.println("Error: rmdir takes one argument");
-            return;
-        }
+    // With -u an unchanged destination is left alone
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+    if (update && CopyEngine.isUpToDate(source, attrs, destination, checksum))
+    {
+        return;
+    }
 
-        if ("*".equals(args[0])){
-            // We need to loop over all the directories in the current path and check if they are ampty if so remove
+    if (attrs.size() >= LargeFileCopier.LARGE_FILE || largeFiles.hasJournal(destination))
+    {
+        long copied = largeFiles.copy(source, destination, attrs, update);
+        IoCounters.copied(copied);
+        control.progress(0, 1);
+        return;
+    }
 
-            // Get all direcrotries in the current path
-            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(currentPath, Files::isDirectory)) {
-            
-                for (Path dir : dirStream) {
+    // Copy the file, replacing if it already exists (-u keeps the time for the next comparison)
+    if (update) {
+        Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    } else {
+        Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
+    }
+    long size = Files.size(destination);
+    IoCounters.copied(size);
+    control.progress(size, 1);
+}
 
-                    // We will go into each directory to see if it's empty or not 
-                    try (DirectoryStream<Path> dir2 = Files.newDirectoryStream(dir)) {
 
-                        if (!dir2.iterator().hasNext()) { 
-                            Files.delete(dir);
-                            
-                        }
-                    }
-                }   
-            }catch (Exception e) {
-                System.out.println("Error: " + e.getMessage());
+    // rmdir [-p] dir...   or   rmdir *
+    // -p also removes the parents named in the path once they are empty.
+    // "*" removes every empty directory in the current path.
+    public void rmdir(Arguments args) {
+        boolean parents = false;
+        String[] words = args.words();
+        for (int i = 0; i < words.length; i++) {
+            if (words[i].equals("-p")) {
+                parents = true;
+                args.skip(i);
             }
-            return;
         }
-        else{
+
+        // What a glob matched (rmdir *) is removed quietly when it is an empty directory,
+        // files and non-empty directories are left alone
+        List<Path> matched = new ArrayList<>();
+        boolean any = false;
+        while (args.hasNext()) {
+            String name = args.next();
+            if (args.expanded()) {
+                any = true;
+                matched.add(currentPath.resolve(name));
+                if (matched.size() == RMDIR_BATCH) {
+                    removeEmptyDirectories(matched);
+                    matched.clear();
+                }
+                continue;
+            }
+            any = true;
 
             // Get the path of the directory we want to delete
-            Path dir = currentPath.resolve(args[0]).normalize().toAbsolutePath();
+            Path dir = currentPath.resolve(name).normalize().toAbsolutePath();
 
             // Check if the dir exists and is a directory not a file
-            if (Files.isDirectory(dir)) {
+            if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                fail("Error: Directory does not exist");
+                continue;
+            }
 
-                // check if the directory is empty
-                try (DirectoryStream<Path> dir2 = Files.newDirectoryStream(dir)) {
+            // Deleting fails when the directory is not empty, no need to list it first
+            try {
+                Files.delete(dir);
+            } catch (DirectoryNotEmptyException e) {
+                fail(dir.getFileName() + " is not empty!");
+                continue;
+            } catch (IOException e) {
+                fail("Error: " + e.getMessage());
+                continue;
+            }
 
-                    if (!dir2.iterator().hasNext()) { 
-                        Files.delete(dir);
-                        return;
+            if (parents) {
+                // Walk up the path as it was written: rmdir -p a/b/c also removes a/b and a
+                Path written = Paths.get(name).normalize().getParent();
+                while (written != null) {
+                    try {
+                        Files.delete(currentPath.resolve(written));
+                    } catch (DirectoryNotEmptyException e) {
+                        fail(written + " is not empty!");
+                        break;
+                    } catch (IOException e) {
+                        fail("Error: " + e.getMessage());
+                        break;
                     }
-                    else {
-                        System.out.print(dir.getFileName()+" is not empty!");
-                    }
-                }catch (Exception e) {
-                    System.out.println("Error: " + e.getMessage());
+                    written = written.getParent();
                 }
-                return;
-            } 
-            else {
-                System.out.print("Error: Directory does not exist");
-                return;
             }
-            
         }
+        removeEmptyDirectories(matched);
+
+        if (!any) {
+            fail("Error: rmdir takes one argument");
+        }
+    }
+
+    // How many matches of a glob rmdir holds before it removes them
+    private static final int RMDIR_BATCH = 4096;
 
-    } 
+    // rmdir *: the empty directories are removed concurrently. Each delete is its own
+    // emptiness check (the OS refuses to remove a directory that still has entries),
+    // so no directory is ever opened.
+    private void removeEmptyDirectories(List<Path> paths) {
+        ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        paths.parallelStream().forEach(dir -> {
+            if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                return;
+            }
+            try {
+                Files.delete(dir);
+            } catch (DirectoryNotEmptyException e) {
+                // not empty, it stays
+            } catch (IOException e) {
+                errors.add("Error: " + dir.getFileName() + ": " + e.getMessage());
+            }
+        });
+        for (String error : errors) {
+            fail(error);
+        }
+    }
 
-    public void touch(String[] args) {
-        if (args.length == 1) {
-            Path newFile = Paths.get(args[0]);
+    // One file; the second argument is not read, whatever a glob would still expand to
+    public void touch(Arguments arguments) {
+        String name = arguments.hasNext() ? arguments.next() : null;
+        if (name != null && !arguments.hasNext()) {
+            Path newFile = Paths.get(name);
             if (!newFile.isAbsolute()) {
                 // Get the given path
                 newFile = currentPath.resolve(newFile).normalize();
@@ -344,353 +1210,6483 @@ private void copyFile(Path source, Path destination) throws IOException
                 // Create the file
                 Files.createFile(newFile);
             } catch (IOException e) {
-                System.out.println("Error creating file: " + e.getMessage());
+                fail("Error creating file: " + e.getMessage());
             }
         } else {
-            System.out.println("Error: invalid number of arguments");
+            fail("Error: invalid number of arguments");
             return;
         }
     }
 
-    public void cat(String[] args) {
-        if (args.length == 1 || args.length == 2) {
-            for (String arg : args) {
-                Path filePath = Paths.get(arg);
-                if (!filePath.isAbsolute()) {
-                    filePath = currentPath.resolve(filePath).normalize();
-                }
-                try {
-                    List<String> lines = Files.readAllLines(filePath);
-                    for (String line : lines) {
-                        System.out.println(line);
+    // Without file names cat copies its input (the previous stage of a pipeline)
+    // The files are read one at a time from the arguments, cat part* starts with the first part
+    // before the others are listed.
+    public void cat(Arguments arguments, InputStream in, OutputSink out) {
+        boolean numberLines = false;
+        boolean showAll = false;
+
+        // Separate the options (-n, -A) from the file names, the options come from the words as typed
+        String[] args = arguments.words();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                numberLines = true;
+                arguments.skip(i);
+            } else if (args[i].equals("-A")) {
+                showAll = true;
+                arguments.skip(i);
+            }
+        }
+        boolean anyFile = arguments.hasOperands();
+
+        if (!anyFile && in == null) {
+            fail("Error: invalid number of arguments");
+            return;
+        }
+
+        // The line scanner keeps its state (line number, start of line) across all the files
+        LineFormatter formatter = (numberLines || showAll) ? new LineFormatter(out, numberLines, showAll) : null;
+
+        if (!anyFile) {
+            try {
+                ReadableByteChannel input = Channels.newChannel(in);
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                while (input.read(chunk) != -1) {
+                    chunk.flip();
+                    if (formatter == null) {
+                        out.write(chunk);
+                    } else {
+                        formatter.feed(chunk);
                     }
-                } catch (IOException e) {
-                    System.out.println("Error reading file: " + e.getMessage());
+                    chunk.clear();
                 }
-                if (!Files.exists(filePath)) {
-                System.out.println("Error: file does not exist: " + filePath);
+                if (formatter != null) {
+                    formatter.flush();
+                }
+            } catch (Pipe.BrokenPipeException e) {
+                // the next stage does not want more data
+            } catch (IOException e) {
+                fail("Error reading input: " + e.getMessage());
+            }
+            return;
+        }
+
+        while (arguments.hasNext()) {
+            String name = arguments.next();
+            Path filePath = resolvePath(name);
+            if (!Files.exists(filePath)) {
+                fail("Error: file does not exist: " + filePath);
+                continue;
+            }
+            if (Files.isDirectory(filePath)) {
+                fail("Error: " + filePath.getFileName() + " is a directory");
                 continue;
+            }
+
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                IoCounters.file();
+                if (formatter == null) {
+                    // Plain cat: let the channel copy the bytes straight to the sink (sendfile when possible)
+                    out.transferFrom(channel, 0, channel.size());
+                } else {
+                    // -n / -A: scan the file chunk by chunk, never more than one buffer in memory
+                    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                    int n;
+                    while ((n = channel.read(chunk)) != -1) {
+                        IoCounters.read(n);
+                        chunk.flip();
+                        formatter.feed(chunk);
+                        chunk.clear();
+                    }
+                    formatter.flush();
                 }
+            } catch (Pipe.BrokenPipeException e) {
+                return;
+            } catch (IOException e) {
+                fail("Error reading file: " + e.getMessage());
             }
+        }
+    }
 
-        } else {
-            System.out.println("Error: invalid number of arguments");
+    // head [-n N | -N] [files]: the first N lines (10 by default). Reading stops at the N-th
+    // newline, so the size of the file does not matter. Without files head reads its input and
+    // closes it once it has enough, which also stops the previous stage of the pipeline.
+    public void head(String[] args, InputStream in, OutputSink out) throws IOException {
+        List<String> names = new ArrayList<>();
+        long lines = parseLineCount("head", args, names, null);
+        if (lines < 0) {
+            return;
+        }
+        if (names.isEmpty()) {
+            if (in == null) {
+                fail("Error: head needs a file (or input from a pipe)");
+                return;
+            }
+            copyFirstLines(in, lines, out);
             return;
         }
+        for (int i = 0; i < names.size(); i++) {
+            Path file = resolvePath(names.get(i));
+            if (!Files.isRegularFile(file)) {
+                fail("Error: file does not exist: " + file);
+                continue;
+            }
+            if (names.size() > 1) {
+                out.println(((i > 0) ? "\n" : "") + "==> " + names.get(i) + " <==");
+            }
+            try (InputStream input = Files.newInputStream(file)) {
+                IoCounters.file();
+                copyFirstLines(input, lines, out);
+            }
+        }
     }
 
-    public void zip(String[] args) {
-        int firstIndex = 0;
-        boolean includeSubdirs = false;
-        // Check for -r option FIRST
-        if (args.length > 0 && "-r".equals(args[0])) {
-            includeSubdirs = true;
-            firstIndex = 1;
+    // tail [-n N | -N] [-f] [files]: the last N lines (10 by default). A file is read backwards
+    // from its end in blocks (positional reads), then the lines are copied from where they
+    // start: the cost depends on the size of the output, not of the file. Without files tail
+    // keeps the last N lines of its input. -f (or -F) then follows the file, see followFile.
+    // tail -f only ends when its job is killed: run it in the background (tail -f log &) and
+    // stop it with kill, in the foreground nothing can stop it but the end of the session.
+    public void tail(String[] args, InputStream in, OutputSink out) throws IOException {
+        List<String> names = new ArrayList<>();
+        boolean[] follow = {false};
+        long lines = parseLineCount("tail", args, names, follow);
+        if (lines < 0) {
+            return;
         }
-        // check for minimum required arguments
-        int remainingArgs = args.length - firstIndex;
-        if (remainingArgs < 2) {
-            System.out.println("Error: Requires archive name and source files");
+        if (names.isEmpty()) {
+            if (in == null || follow[0]) {
+                fail(follow[0] ? "Error: tail -f needs a file" : "Error: tail needs a file (or input from a pipe)");
+                return;
+            }
+            copyLastLines(in, lines, out);
             return;
         }
-        // Get archive name and source paths
-        Path archPath = currentPath.resolve(args[firstIndex]).normalize();
-        Path[] srcPaths = new Path[remainingArgs - 1];
-        int i = 0;
-        while (i < srcPaths.length) {
-            srcPaths[i] = currentPath.resolve(args[firstIndex + 1 + i]).normalize();
-            i++;
+        if (follow[0] && names.size() > 1) {
+            fail("Error: tail -f follows one file");
+            return;
         }
-        // Create zip archive and add all source paths
-        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archPath.toFile()))) {
-            for (Path srcPath : srcPaths) {
-                if (Files.notExists(srcPath)) {
-                    System.out.println("Error: path does not exist: " + srcPath);
-                    continue;
-                }
-                if (Files.isDirectory(srcPath)) {
-                    if (includeSubdirs) {
-                        Files.walkFileTree(srcPath, new SimpleFileVisitor<Path>() {
-                            @Override
-                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                                ZipEntry zipEntry = new ZipEntry(srcPath.relativize(file).toString());
-                                zos.putNextEntry(zipEntry);
-                                Files.copy(file, zos);
-                                zos.closeEntry();
-                                return FileVisitResult.CONTINUE;
-                            }
-                        });
-                    } else {
-                        try (DirectoryStream<Path> stream = Files.newDirectoryStream(srcPath)) {
-                            for (Path entry : stream) {
-                                if (Files.isRegularFile(entry)) {
-                                    ZipEntry zipEntry = new ZipEntry(srcPath.relativize(entry).toString());
-                                    zos.putNextEntry(zipEntry);
-                                    Files.copy(entry, zos);
-                                    zos.closeEntry();
-                                }
-                            }
-                        }
+        for (int i = 0; i < names.size(); i++) {
+            Path file = resolvePath(names.get(i));
+            if (!Files.isRegularFile(file)) {
+                fail("Error: file does not exist: " + file);
+                continue;
+            }
+            if (names.size() > 1) {
+                out.println(((i > 0) ? "\n" : "") + "==> " + names.get(i) + " <==");
+            }
+            // -f follows the very file the last lines came from, even if it is rotated meanwhile
+            Object[] fileKey = {null};
+            try (FileChannel channel = follow[0] ? openFollowed(file, fileKey) : FileChannel.open(file, StandardOpenOption.READ)) {
+                IoCounters.file();
+                long end = channel.size();
+                long start = lastLinesStart(channel, end, lines);
+                out.transferFrom(channel, start, end - start);
+                if (follow[0]) {
+                    out.flush();
+                    try {
+                        followFile(file, channel, fileKey[0], end, out);
+                    } catch (InterruptedIOException e) {
+                        fail("tail: cancelled");
                     }
+                }
+            }
+        }
+    }
+
+    // -n N, -nN or -N (and -f / -F for tail), the other words are file names.
+    // Returns the line count, or -1 after reporting a bad option.
+    private long parseLineCount(String command, String[] args, List<String> names, boolean[] follow) {
+        long lines = 10;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                if (arg.equals("-n") && i + 1 < args.length) {
+                    lines = Long.parseLong(args[++i]);
+                } else if (arg.startsWith("-n") && arg.length() > 2) {
+                    lines = Long.parseLong(arg.substring(2));
+                } else if (follow != null && (arg.equals("-f") || arg.equals("-F"))) {
+                    follow[0] = true;
+                } else if (arg.length() > 1 && arg.charAt(0) == '-' && Character.isDigit(arg.charAt(1))) {
+                    lines = Long.parseLong(arg.substring(1));
+                } else if (arg.startsWith("-") && arg.length() > 1) {
+                    fail("Error: " + command + ": unknown option " + arg);
+                    return -1;
                 } else {
-                    ZipEntry zipEntry = new ZipEntry(srcPath.getFileName().toString());
-                    zos.putNextEntry(zipEntry);
-                    Files.copy(srcPath, zos);
-                    zos.closeEntry();
+                    names.add(arg);
                 }
+            } catch (NumberFormatException e) {
+                fail("Error: " + command + ": bad line count in " + args[i]);
+                return -1;
             }
-        } catch (IOException e) {
-            System.out.println("Error creating zip archive: " + e.getMessage());
         }
+        if (lines < 0) {
+            fail("Error: " + command + ": bad line count " + lines);
+            return -1;
+        }
+        return lines;
     }
 
-    public void unzip(String[] args)
-    {
-      if(args.length!=1 && !(args[1].equals("-d") && args.length==3))
-      {
-        System.out.println("Error: Invalid number of arguments");
-        return;
-      }
-      Path zipFilePath = currentPath.resolve(args[0]).normalize();
-     //Destination directory: if "-d" provided use its value, otherwise use currentPath
-      Path destinationDir = (args.length == 3) ? resolvePath(args[2]) : currentPath;
-      
-      //Ensure the zip file exists before attempting to open it
-      if(!Files.exists(zipFilePath))
-      {
-        System.out.println("Error: Zip file not found");
-        return;
-      }
+    private static void copyFirstLines(InputStream in, long lines, OutputSink out) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long remaining = lines;
+        int n;
+        while (remaining > 0 && (n = in.read(chunk)) != -1) {
+            IoCounters.read(n);
+            int end = 0;
+            while (end < n && remaining > 0) {
+                if (chunk[end++] == '\n') {
+                    remaining--;
+                }
+            }
+            out.write(chunk, 0, end);
+        }
+    }
 
-      //Create destination directory using your existing mkdir() if the desired directory does not exist
-    try 
-    {
-     if (!Files.exists(destinationDir))
-     {
-        Files.createDirectories(destinationDir); 
-     } 
-    } 
-    catch (IOException e) 
-    { 
-        System.out.println("Error: Cannot create destination directory"); return;
-   }
-    //Open the zip file as a stream and iterate over entries
-        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zipFilePath))) 
-        {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) 
-            {
-            Path newFilePath = destinationDir.resolve(entry.getName()).normalize();
-            if (entry.isDirectory()) 
-            {
-                Files.createDirectories(newFilePath);
-            } 
-            else 
-            {
-                //For files ensure parent directory exists
-                Files.createDirectories(newFilePath.getParent());
-                //Copy entry data from the zip input stream to the output file
-                Files.copy(zis, newFilePath, StandardCopyOption.REPLACE_EXISTING);
+    // Where the last "lines" lines of the file start. The newline that ends the file does not
+    // start another line, and a last line without a newline still counts.
+    private static long lastLinesStart(FileChannel channel, long size, long lines) throws IOException {
+        if (lines == 0) {
+            return size;
+        }
+        ByteBuffer block = ByteBuffer.allocate(CHUNK_SIZE);
+        long newlines = 0;
+        long position = size;
+        while (position > 0) {
+            long start = Math.max(0, position - CHUNK_SIZE);
+            block.clear().limit((int) (position - start));
+            while (block.hasRemaining()) {
+                if (channel.read(block, start + block.position()) < 0) {
+                    return 0;   // the file got shorter, what is left is the end
+                }
             }
-            zis.closeEntry();
+            IoCounters.read(block.limit());
+            for (int i = block.limit() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && start + i != size - 1 && ++newlines == lines) {
+                    return start + i + 1;
+                }
+            }
+            position = start;
+        }
+        return 0;
+    }
+
+    // Input that cannot be read backwards: the last lines are kept as they go by
+    private static void copyLastLines(InputStream in, long lines, OutputSink out) throws IOException {
+        ArrayDeque<byte[]> last = new ArrayDeque<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            IoCounters.read(n);
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] == '\n') {
+                    line.write(chunk, start, i + 1 - start);
+                    start = i + 1;
+                    last.add(line.toByteArray());
+                    line.reset();
+                    if (last.size() > lines) {
+                        last.poll();
+                    }
+                }
+            }
+            line.write(chunk, start, n - start);
+        }
+        if (line.size() > 0) {
+            last.add(line.toByteArray());
+            if (last.size() > lines) {
+                last.poll();
             }
-        } 
-        catch (IOException error) 
-        {
-            System.out.println("Error extracting zip file: " + error.getMessage());
+        }
+        for (byte[] kept : last) {
+            out.write(kept, 0, kept.length);
         }
     }
 
-    public void rm(String[] args){
+    // How long tail -f waits for an event before it looks at the file anyway (a missed event,
+    // a file system without notifications), and how often it looks without a WatchService
+    private static final long FOLLOW_CHECK_MILLIS = 1000;
+    private static final long FOLLOW_POLL_MILLIS = 200;
 
-        // Path of the file 
-        Path file = currentPath.resolve(args[0]);
+    // tail -f: follows the file by name. New data is written as soon as the WatchService of its
+    // directory reports a change (inotify on Linux, so no CPU while nothing happens); without
+    // a WatchService the file is polled. A truncated file is read again from the start; a
+    // replaced one (log rotation: renamed, then created again) is read to its end, then the
+    // new file is followed from its beginning. Ends when the job is killed or nobody reads.
+    // (A foreground tail -f is never killed, see tail.) "opened" is the channel tail read, with the
+    // fileKey it had when it was opened; it stays open, the files of later rotations are closed here.
+    private void followFile(Path file, FileChannel opened, Object openedKey, long position, OutputSink out) throws IOException {
+        WatchService watcher = null;
+        try {
+            watcher = file.getFileSystem().newWatchService();
+            file.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (watcher != null) {
+                watcher.close();
+                watcher = null;
+            }
+        }
 
-        // Check if the file exists and is a file
+        Object[] fileKey = {openedKey};
+        FileChannel channel = opened;
         try {
+            while (true) {
+                control.checkCancelled();
+                long size = channel.size();
+                if (size < position) {
+                    err.println("tail: " + file.getFileName() + ": file truncated");
+                    position = 0;
+                }
+                if (size > position) {
+                    out.transferFrom(channel, position, size - position);
+                    out.flush();
+                    position = size;
+                }
 
-            if (Files.isRegularFile(file)) {
-                Files.delete(file);
+                // Rotation: the name now points to another file. What was written to the old one
+                // before it was replaced is read to its end, then the new one is followed.
+                Object currentKey = currentFileKey(file);
+                if (fileKey[0] != null && currentKey != null && !currentKey.equals(fileKey[0])) {
+                    long last = channel.size();
+                    if (last > position) {
+                        out.transferFrom(channel, position, last - position);
+                        out.flush();
+                    }
+                    FileChannel replaced;
+                    try {
+                        replaced = openFollowed(file, fileKey);
+                    } catch (NoSuchFileException e) {
+                        position = last;
+                        continue;       // rotated again in between, the next round tries again
+                    }
+                    if (channel != opened) {
+                        channel.close();
+                    }
+                    channel = replaced;
+                    position = 0;
+                    err.println("tail: " + file.getFileName() + " has been replaced, following the new file");
+                    continue;
+                }
+
+                if (watcher != null) {
+                    WatchKey key = watcher.poll(FOLLOW_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(FOLLOW_POLL_MILLIS);
+                }
             }
-            else{
-                System.out.print(file.getFileName() + " does not exist or is not a file");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cancelled");
+        } finally {
+            if (channel != opened) {
+                channel.close();
+            }
+            if (watcher != null) {
+                watcher.close();
             }
-            
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
         }
     }
-   
-    //  mkdir command implementation
-   public void mkdir(String[] args) {
-        // Check if user passed at least one argument 
-        if (args.length == 0) {
-            System.out.println("mkdir: missing operand");
-            return;
-        }
 
-        // Loop over each argument (each dir name/path separately)
-        for (String dirArg : args) {
-            
-            // Build the path for this directory
-            Path dirPath = currentPath.resolve(dirArg).normalize().toAbsolutePath();
-            
-            // Check if directory exists
-            if (Files.exists(dirPath)) {
-                System.out.println("mkdir: cannot create directory '" + dirArg + "': File exists");
-                continue;
+    // Opens the followed file and puts its fileKey in key[0]. Java has no fstat: the name is looked
+    // up before and after the open, when it was the same file both times the channel is that
+    // file. A rotation in between makes it open the new file again.
+    private static FileChannel openFollowed(Path file, Object[] key) throws IOException {
+        while (true) {
+            Object before = currentFileKey(file);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            Object after = currentFileKey(file);
+            if (Objects.equals(before, after)) {
+                key[0] = after;
+                return channel;
             }
+            channel.close();
+        }
+    }
 
-            // Try to create directory (including parent folders)
-            try {
-                // createDirectories -> supports nested like xxx/xxxx
-                Files.createDirectories(dirPath);
-            } catch (IOException e) {
-                System.out.println("mkdir: failed to create '" + dirArg + "': " + e.getMessage());
-            }
+    // null while the file is missing (between the rename and the new file of a rotation)
+    private static Object currentFileKey(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
         }
     }
 
-    public void wc(String[] args){
-        if (args.length != 1) {
-            System.out.println("Error: wc takes 1 argument");
+    public void zip(String[] args, OutputSink out) {
+        boolean includeSubdirs = false;
+        boolean update = false;
+        int jobs = ParallelZipWriter.DEFAULT_JOBS;
+        List<String> operands = new ArrayList<>();
+        // Separate the options (-r, -u, --jobs N) from the archive and source names
+        for (int i = 0; i < args.length; i++) {
+            try {
+                if ("-r".equals(args[i])) {
+                    includeSubdirs = true;
+                } else if ("-u".equals(args[i])) {
+                    update = true;
+                } else if ("-ru".equals(args[i]) || "-ur".equals(args[i])) {
+                    includeSubdirs = true;
+                    update = true;
+                } else if ("--jobs".equals(args[i]) && i + 1 < args.length) {
+                    jobs = Integer.parseInt(args[++i]);
+                } else if (args[i].startsWith("--jobs=")) {
+                    jobs = Integer.parseInt(args[i].substring("--jobs=".length()));
+                } else {
+                    operands.add(args[i]);
+                }
+            } catch (NumberFormatException e) {
+                fail("Error: --jobs needs a number");
+                return;
+            }
+        }
+        if (jobs < 1) {
+            fail("Error: --jobs must be at least 1");
+            return;
+        }
+        // check for minimum required arguments
+        if (operands.size() < 2) {
+            fail("Error: Requires archive name and source files");
+            return;
+        }
+        // Get archive name and source paths
+        Path archPath = currentPath.resolve(operands.get(0)).normalize().toAbsolutePath();
+        Path tempPath = archPath.resolveSibling(archPath.getFileName() + ".tmp");
+        Path[] srcPaths = new Path[operands.size() - 1];
+        int i = 0;
+        while (i < srcPaths.length) {
+            srcPaths[i] = currentPath.resolve(operands.get(1 + i)).normalize().toAbsolutePath();
+            i++;
         }
-        Path file = currentPath.resolve(args[0]);
         try {
-            // Path fileName = file.getFileName(); // Get file Name 
-            String fileContent = new String(Files.readAllBytes(file)); // read file content
-            
-            long numLines = fileContent.lines().count();
-            
-            // Split between words by spaces (one space or more)
-            long numWords = Arrays.stream(fileContent.split("\\s+")).filter(w -> !w.isEmpty()).count();
-            
-            // Count number of chars
-            long charCount = fileContent.length();
+            // Entry name -> file, in the order they will be added
+            Map<String, Path> sources = new LinkedHashMap<>();
+            for (Path srcPath : srcPaths) {
+                if (Files.notExists(srcPath)) {
+                    fail("Error: path does not exist: " + srcPath);
+                    continue;
+                }
+                collectZipSources(srcPath, includeSubdirs, sources, archPath, tempPath);
+            }
+            if (update && Files.exists(archPath)) {
+                updateZip(archPath, tempPath, sources, jobs, out);
+                return;
+            }
+            // Create zip archive and add all source paths, the entries are compressed in parallel
+            try (ParallelZipWriter zw = new ParallelZipWriter(archPath, jobs)) {
+                zw.setControl(control);
+                for (Map.Entry<String, Path> source : sources.entrySet()) {
+                    zw.addFile(source.getValue(), source.getKey());
+                }
+            }
+        } catch (IOException e) {
+            fail(control.isCancelled() ? "zip: cancelled" : "Error creating zip archive: " + e.getMessage());
+        }
+    }
 
-            System.out.println(numLines + " " + numWords + " " + charCount + " " + file.getFileName());
-            
-        } catch (Exception e) {
-            System.out.println("Error: Can not resolve file " + e.getMessage());
+    private void collectZipSources(Path srcPath, boolean includeSubdirs, Map<String, Path> sources,
+                                   Path archPath, Path tempPath) throws IOException {
+        if (!Files.isDirectory(srcPath)) {
+            // A file operand can name the archive any way (../out.zip, a link): compare the files.
+            // In the directories below the archive is only ever reached by its own path.
+            if (isSameZipFile(srcPath, archPath) || isSameZipFile(srcPath, tempPath)) {
+                err.println("zip: " + srcPath.getFileName() + ": skipped, it is the archive itself");
+                return;
+            }
+            addZipSource(sources, srcPath.getFileName().toString(), srcPath);
+        } else if (includeSubdirs) {
+            Files.walkFileTree(srcPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    // Never put the archive inside itself
+                    if (attrs.isRegularFile() && !file.equals(archPath) && !file.equals(tempPath)) {
+                        addZipSource(sources, srcPath.relativize(file).toString(), file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } else {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(srcPath)) {
+                for (Path entry : stream) {
+                    if (Files.isRegularFile(entry) && !entry.equals(archPath) && !entry.equals(tempPath)) {
+                        addZipSource(sources, srcPath.relativize(entry).toString(), entry);
+                    }
+                }
+            }
         }
-        
     }
 
-    private Path resolvePath(String pathStr) {
-    Path path = Paths.get(pathStr);
-    if (!path.isAbsolute()) {
-        path = currentPath.resolve(path).normalize().toAbsolutePath();
-    } else {
-        path = path.normalize().toAbsolutePath();
+    private static boolean isSameZipFile(Path file, Path archive) throws IOException {
+        return file.equals(archive) || (Files.exists(archive) && Files.isSameFile(file, archive));
     }
-    return path;
-}
 
-    private String runCommand(String cmd,String[] args){
-        
-        switch (cmd) {
-            case "pwd":
-                return pwd();
-        
-            case("ls"):
-                return ls();
-                
-            case("cd"):
-                cd(args);
-                return ""; 
-            
-            case("rmdir"):
-                rmdir(args);
-                return ""; 
-            
-            case("rm"):
-                rm(args);
-                return ""; 
+    private static void addZipSource(Map<String, Path> sources, String name, Path file) throws ZipException {
+        // Zip entry names always use '/'
+        name = name.replace(File.separatorChar, '/');
+        if (sources.putIfAbsent(name, file) != null) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+    }
 
-            case("mkdir"):
-                mkdir(args);
-                return "";
+    // zip -u: the new archive is written next to the old one and moved over it at the end, so an
+    // interrupted update leaves the old archive as it was. Entries whose file did not change
+    // (same size and time, or same size and CRC-32) are copied compressed, only the rest is deflated.
+    private void updateZip(Path archPath, Path tempPath, Map<String, Path> sources, int jobs, OutputSink out) throws IOException {
+        int kept = 0;
+        int updated = 0;
+        int added = 0;
+        try (FileChannel old = FileChannel.open(archPath, StandardOpenOption.READ)) {
+            IoCounters.file();
+            List<ZipDirectory.RawEntry> existing = ZipDirectory.read(old);
 
-            case("cp"):
-                cp(args);
-                return "";
-            
-            case "touch":
-                touch(args);
-                return "";
+            // Decide first, so an archive that is already up to date is not rewritten at all
+            Map<String, Path> remaining = new LinkedHashMap<>(sources);
+            List<Path> replacements = new ArrayList<>(existing.size());
+            for (ZipDirectory.RawEntry entry : existing) {
+                Path file = remaining.remove(entry.name);
+                if (file != null && zipEntryChanged(entry, file)) {
+                    replacements.add(file);
+                    updated++;
+                } else {
+                    replacements.add(null);
+                    kept++;
+                }
+            }
+            added = remaining.size();
+            if (updated == 0 && added == 0) {
+                out.println("zip: " + archPath.getFileName() + " is up to date (" + kept + " entries)");
+                return;
+            }
 
-            case "cat":
-                cat(args);
-                return "";
-            
-            case "wc":
-                wc(args);
-                return "";
+            boolean done = false;
+            try (ParallelZipWriter zw = new ParallelZipWriter(tempPath, jobs)) {
+                zw.setControl(control);
+                for (int n = 0; n < existing.size(); n++) {
+                    if (replacements.get(n) == null) {
+                        zw.addRaw(existing.get(n), old);
+                    } else {
+                        zw.addFile(replacements.get(n), existing.get(n).name);
+                    }
+                }
+                for (Map.Entry<String, Path> source : remaining.entrySet()) {
+                    zw.addFile(source.getValue(), source.getKey());
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    Files.deleteIfExists(tempPath);
+                }
+            }
+        }
+        try {
+            Files.move(tempPath, archPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, archPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        out.println("zip: " + kept + " kept, " + updated + " updated, " + added + " added");
+    }
 
-            case "zip":
-                zip(args);
-                return "";  
+    private static boolean zipEntryChanged(ZipDirectory.RawEntry entry, Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attrs.size() != entry.size) {
+            return true;
+        }
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (ParallelZipWriter.dosDate(modified) == entry.dosDate && ParallelZipWriter.dosTime(modified) == entry.dosTime) {
+            return false;
+        }
+        // Touched but maybe not modified: the CRC-32 decides, reading is still cheaper than deflating
+        return !HashEngine.hash(file, "CRC32").equals(String.format("%08x", entry.crc));
+    }
 
-            case "unzip":
-                unzip(args);
-                return ""; 
+    public void unzip(String[] args, OutputSink out)
+    {
+      boolean listOnly = false;
+      boolean verify = false;
+      int jobs = Runtime.getRuntime().availableProcessors();
+      Path destinationDir = currentPath;
+      List<String> operands = new ArrayList<>();
 
-            default:
-                System.out.print("Command Not Found");
-                return "";
+      // Separate the options (-l, -d dir, --verify, --jobs N) from the archive name and the entry names
+      for (int i = 0; i < args.length; i++)
+      {
+        try {
+          if (args[i].equals("-l")) {
+            listOnly = true;
+          } else if (args[i].equals("--verify")) {
+            verify = true;
+          } else if (args[i].equals("-d") && i + 1 < args.length) {
+            destinationDir = resolvePath(args[++i]);
+          } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+            jobs = Integer.parseInt(args[++i]);
+          } else if (args[i].startsWith("--jobs=")) {
+            jobs = Integer.parseInt(args[i].substring("--jobs=".length()));
+          } else if (args[i].equals("-d") || args[i].equals("--jobs")) {
+            fail("Error: " + args[i] + " needs a value");
+            return;
+          } else {
+            operands.add(args[i]);
+          }
+        } catch (NumberFormatException e) {
+          fail("Error: --jobs needs a number");
+          return;
         }
-        
+      }
+      if(operands.isEmpty() || jobs < 1)
+      {
+        fail("Error: Invalid number of arguments");
+        return;
+      }
+      Path zipFilePath = currentPath.resolve(operands.get(0)).normalize();
+
+      //Ensure the zip file exists before attempting to open it
+      if(!Files.exists(zipFilePath))
+      {
+        fail("Error: Zip file not found");
+        return;
+      }
+
+      //Any other operand selects entries, by exact name or by glob (a/*.txt, **.log)
+      List<PathMatcher> selectors = new ArrayList<>();
+      List<String> names = operands.subList(1, operands.size());
+      for (String name : names)
+      {
+        try {
+          selectors.add(FileSystems.getDefault().getPathMatcher("glob:" + name));
+        } catch (IllegalArgumentException e) {
+          // not a valid glob (a[b): the name still selects the entry with exactly that name
+        }
+      }
+
+    //ZipFile only reads the central directory, no entry is inflated until we ask for it
+        try (ZipFile zipFile = new ZipFile(zipFilePath.toFile()))
+        {
+            List<ZipEntry> selected = new ArrayList<>();
+            Enumeration<? extends ZipEntry> all = zipFile.entries();
+            while (all.hasMoreElements())
+            {
+                ZipEntry entry = all.nextElement();
+                if (names.isEmpty() || names.contains(entry.getName()) || matchesAny(selectors, entry.getName()))
+                {
+                    selected.add(entry);
+                }
+            }
 
+            if (listOnly)
+            {
+                listZipEntries(selected, out);
+                return;
+            }
+
+            if (selected.isEmpty())
+            {
+                fail("Error: no matching entries in " + zipFilePath.getFileName());
+                return;
+            }
+
+            extractZipEntries(zipFile, selected, destinationDir, jobs, verify);
+        }
+        catch (IOException error)
+        {
+            fail(control.isCancelled() ? "unzip: cancelled" : "Error extracting zip file: " + error.getMessage());
+        }
+    }
+
+    private static boolean matchesAny(List<PathMatcher> selectors, String entryName) {
+        try {
+            Path entryPath = Paths.get(entryName);
+            for (PathMatcher selector : selectors) {
+                if (selector.matches(entryPath)) {
+                    return true;
+                }
+            }
+        } catch (InvalidPathException e) {
+            // a name that is not a valid path here can only be selected by its exact name
+        }
+        return false;
     }
 
+    // unzip -l: everything comes from the central directory, nothing is decompressed
+    private void listZipEntries(List<ZipEntry> entries, OutputSink out) throws IOException {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        long totalSize = 0;
+        out.println("  Length      Date    Time    Name");
+        out.println("---------  ---------- -----   ----");
+        for (ZipEntry entry : entries) {
+            long size = Math.max(entry.getSize(), 0);
+            totalSize += size;
+            String date = (entry.getTimeLocal() != null) ? entry.getTimeLocal().format(format) : "";
+            out.println(String.format("%9d  %-16s   %s", size, date, entry.getName()));
+        }
+        out.println("---------                     -------");
+        out.println(String.format("%9d                     %d file%s", totalSize, entries.size(), entries.size() == 1 ? "" : "s"));
+    }
 
-public static void main(String[] args) throws IOException {
-    Terminal terminal = new Terminal();
-    Scanner scanner = new Scanner(System.in);
+    // Inflate the selected entries concurrently, each worker reads its own entry from the ZipFile
+    // --verify reads every extracted file back and checks it against the CRC-32 of the archive
+    private void extractZipEntries(ZipFile zipFile, List<ZipEntry> entries, Path destinationDir, int jobs, boolean verify) throws IOException {
+        Path root = destinationDir.normalize().toAbsolutePath();
+        Files.createDirectories(root);
 
-    while (true) {
-        System.out.print(terminal.currentPath + "> ");
-        
-        //  Read user input
-        String command = scanner.nextLine();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(jobs, entries.size()));
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (ZipEntry entry : entries) {
+                control.checkCancelled();
+                Path newFilePath = root.resolve(entry.getName()).normalize();
 
-        //  Parse the input command
-        terminal.parser.parse(command);
-        String cmd = terminal.parser.getCommandName();
-        String[] arg = terminal.parser.getArgs();
+                // Refuse names like ../../x that would land outside the destination
+                if (!newFilePath.startsWith(root)) {
+                    fail("Error: skipping entry outside destination: " + entry.getName());
+                    continue;
+                }
 
-        //  Exit condition
-        if (cmd.equals("exit")) {
-            break;
+                // Directories are created here, before any file that goes inside them
+                if (entry.isDirectory()) {
+                    Files.createDirectories(newFilePath);
+                    continue;
+                }
+                Files.createDirectories(newFilePath.getParent());
+
+                results.add(workers.submit(() -> {
+                    if (control.isCancelled()) {
+                        return null;
+                    }
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        long size = Files.copy(in, newFilePath, StandardCopyOption.REPLACE_EXISTING);
+                        IoCounters.written(size);
+                        IoCounters.read(entry.getCompressedSize());
+                        IoCounters.file();
+                        control.progress(size, 1);
+                    }
+                    if (verify && entry.getCrc() != -1
+                            && !HashEngine.hash(newFilePath, "CRC32").equals(String.format("%08x", entry.getCrc()))) {
+                        throw new IOException(entry.getName() + ": verification failed, CRC-32 does not match the archive");
+                    }
+                    return null;
+                }));
+            }
+
+            // Report the failures in archive order
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    fail("Error extracting zip file: " + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // rm [-r] [-f] [--jobs N] paths...
+    // -r removes directories with everything in them (see DeleteEngine), -f ignores
+    // paths that do not exist. The paths are taken one at a time, rm *.tmp in a huge
+    // directory removes the files while the directory is being read.
+    public void rm(Arguments arguments, OutputSink out) throws IOException {
+        boolean recursive = false, force = false;
+        int jobs = DeleteEngine.DEFAULT_JOBS;
+
+        // The options come from the words as typed, what a glob expands to is never an option
+        String[] args = arguments.words();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--jobs") && i + 1 < args.length) {
+                arguments.skip(i);
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                    arguments.skip(i);
+                } catch (NumberFormatException e) {
+                    fail("Error: --jobs needs a number");
+                    return;
+                }
+            } else if (arg.startsWith("--")) {
+                fail("Error: rm: unknown option " + arg);
+                return;
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                arguments.skip(i);
+                for (char option : arg.substring(1).toCharArray()) {
+                    if (option == 'r' || option == 'R') {
+                        recursive = true;
+                    } else if (option == 'f') {
+                        force = true;
+                    } else {
+                        fail("Error: rm: unknown option -" + option);
+                        return;
+                    }
+                }
+            }
+        }
+        if (jobs < 1) {
+            fail("Error: --jobs must be at least 1");
+            return;
+        }
+
+        DeleteEngine engine = null;
+        boolean any = false;
+        try {
+            while (arguments.hasNext()) {
+                String name = arguments.next();
+                any = true;
+                control.checkCancelled();
+
+                // Path of the file
+                Path file = currentPath.resolve(name).normalize();
+
+                // Never the current directory, one of its parents or the root
+                if (currentPath.startsWith(file)) {
+                    fail("rm: refusing to remove " + name);
+                    continue;
+                }
+
+                if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!force) {
+                        fail(file.getFileName() + " does not exist or is not a file");
+                    }
+                    continue;
+                }
+
+                if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!recursive) {
+                        fail("rm: " + name + " is a directory (use rm -r)");
+                        continue;
+                    }
+                    if (engine == null) {
+                        // A background job shows its progress through "jobs", not on the error stream
+                        engine = new DeleteEngine(jobs, (control == JobControl.NONE) ? err : null);
+                        engine.setControl(control);
+                    }
+                    engine.deleteTree(file);
+                    continue;
+                }
+
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    fail("Error: " + e.getMessage());
+                }
+            }
+        } finally {
+            if (engine != null) {
+                engine.shutdown();
+            }
         }
 
-        //  Execute the command and capture output
-        String output = terminal.runCommand(cmd, arg);
+        if (!any && !force) {
+            fail("rm: missing operand");
+        }
+        if (engine != null) {
+            out.println(engine.summary());
+            if (!engine.getErrors().isEmpty()) {
+                status = 1;
+            }
+            if (control.isCancelled()) {
+                fail("rm: cancelled");
+            }
+        }
+    }
+   
+    //  mkdir command implementation
+   public void mkdir(String[] args) {
+        // Check if user passed at least one argument 
+        if (args.length == 0) {
+            fail("mkdir: missing operand");
+            return;
+        }
 
-        //  Check if output redirection is used ( ">" or ">>" )
-          if (terminal.parser.redirectFile != null) {
-             Path filePath = terminal.currentPath.resolve(terminal.parser.redirectFile);
+        // Loop over each argument (each dir name/path separately)
+        for (String dirArg : args) {
+            
+            // Build the path for this directory
+            Path dirPath = currentPath.resolve(dirArg).normalize().toAbsolutePath();
+            
+            // Check if directory exists
+            if (Files.exists(dirPath)) {
+                fail("mkdir: cannot create directory '" + dirArg + "': File exists");
+                continue;
+            }
 
+            // Try to create directory (including parent folders)
             try {
-               if (terminal.parser.appendMode) {
-                // >> Append mode
-                   Files.writeString(filePath, output + System.lineSeparator(), 
-                   StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-               } else {
-                // > Overwrite mode
-                   Files.writeString(filePath, output + System.lineSeparator(),
-                   StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                // createDirectories -> supports nested like xxx/xxxx
+                Files.createDirectories(dirPath);
+            } catch (IOException e) {
+                fail("mkdir: failed to create '" + dirArg + "': " + e.getMessage());
+            }
+        }
+    }
+
+    // Without file names wc counts its input (the previous stage of a pipeline)
+    public void wc(Arguments arguments, InputStream in, OutputSink out) throws IOException {
+        boolean showLines = false, showWords = false, showBytes = false, showChars = false;
+
+        // Options can be given separately (-l -w) or together (-lw), they come from the words as typed
+        String[] args = arguments.words();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-") && arg.length() > 1) {
+                arguments.skip(i);
+                for (char option : arg.substring(1).toCharArray()) {
+                    switch (option) {
+                        case 'l': showLines = true; break;
+                        case 'w': showWords = true; break;
+                        case 'c': showBytes = true; break;
+                        case 'm': showChars = true; break;
+                        default:
+                            fail("Error: wc: unknown option -" + option);
+                            return;
+                    }
                 }
+            }
+        }
+        boolean anyFile = arguments.hasOperands();
+
+        if (!anyFile && in == null) {
+            fail("Error: wc takes at least 1 argument");
+            return;
+        }
+
+        // No option means lines, words and bytes (like the real wc)
+        if (!showLines && !showWords && !showBytes && !showChars) {
+            showLines = showWords = showBytes = true;
+        }
+
+        if (!anyFile) {
+            try {
+                out.println(WordCounter.count(in).format(showLines, showWords, showChars, showBytes));
             } catch (IOException e) {
-                   System.out.println("Error writing to file: " + e.getMessage());
+                fail("Error reading input: " + e.getMessage());
             }
-        } else {
-             System.out.println(output);
-           }
+            return;
+        }
+
+        // Count several files at once, the big ones also split themselves into ranges. The files
+        // come from the arguments as they are needed, at most "window" are counted ahead of the output
+        int window = ForkJoinPool.commonPool().getParallelism() * 4;
+        ArrayDeque<Path> files = new ArrayDeque<>();
+        ArrayDeque<ForkJoinTask<WordCounter.Counts>> tasks = new ArrayDeque<>();
+        WordCounter.Counts total = new WordCounter.Counts();
+        int count = 0;
+        while (true) {
+            boolean more = arguments.hasNext();
+            if (more) {
+                Path file = resolvePath(arguments.next());
+                files.add(file);
+                tasks.add(ForkJoinPool.commonPool().submit(() -> WordCounter.count(file)));
+                count++;
+            }
+            while (!tasks.isEmpty() && (!more || tasks.size() > window)) {
+                Path file = files.poll();
+                try {
+                    WordCounter.Counts counts = tasks.poll().join();
+                    total.add(counts);
+                    out.println(counts.format(showLines, showWords, showChars, showBytes) + " " + file.getFileName());
+                } catch (RuntimeException e) {
+                    Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                    fail("Error: Can not resolve file " + cause.getMessage());
+                }
+            }
+            if (!more) {
+                break;
+            }
+        }
+
+        if (count > 1) {
+            out.println(total.format(showLines, showWords, showChars, showBytes) + " total");
+        }
+    }
+
+    // sha256sum / md5sum / crc32 [-r] [-c manifest] [--cache[=file]] [--jobs N] [files...]
+    // Prints "<hash>  <name>" per file (crc32 is the CRC-32 of zip and gzip). -c checks the files of a manifest
+    // written in the same format. Files are hashed concurrently, the output keeps their order.
+    // --cache reuses the hash of a file whose size, mtime and inode did not change.
+    public void checksum(String algorithm, Arguments arguments, InputStream in, OutputSink out) throws IOException {
+        String command = algorithm.equals("SHA-256") ? "sha256sum" : algorithm.equals("MD5") ? "md5sum" : "crc32";
+        boolean recursive = false;
+        String manifest = null;
+        Path cacheFile = null;
+        int jobs = HashEngine.DEFAULT_JOBS;
+
+        // The options come from the words as typed, the files are read one at a time further down
+        String[] args = arguments.words();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-") || arg.length() == 1) {
+                continue;
+            }
+            arguments.skip(i);
+            if (arg.equals("-r")) {
+                recursive = true;
+            } else if (arg.equals("-c") && i + 1 < args.length) {
+                manifest = arguments.option(++i);
+                arguments.skip(i);
+            } else if (arg.equals("--cache")) {
+                cacheFile = homePath.resolve(".cache").resolve("cli-hash.cache");
+            } else if (arg.startsWith("--cache=")) {
+                cacheFile = resolvePath(arg.substring("--cache=".length()));
+            } else if (arg.equals("--jobs") && i + 1 < args.length) {
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                    arguments.skip(i);
+                } catch (NumberFormatException e) {
+                    fail("Error: --jobs needs a number");
+                    return;
+                }
+            } else {
+                fail("Error: " + command + ": unknown option " + arg);
+                return;
+            }
+        }
+        boolean anyName = arguments.hasOperands();
+        if (jobs < 1) {
+            fail("Error: --jobs must be at least 1");
+            return;
+        }
+
+        // Input from the pipeline
+        if (manifest == null && !anyName) {
+            if (in == null) {
+                fail("Error: " + command + " needs a file (or input from a pipe)");
+                return;
+            }
+            out.println(HashEngine.hash(in, algorithm) + "  -");
+            return;
+        }
+
+        HashEngine engine = new HashEngine(algorithm, jobs, cacheFile);
+        try {
+            if (manifest != null) {
+                verifyManifest(command, engine, resolvePath(manifest), out);
+            } else {
+                while (arguments.hasNext()) {
+                    String name = arguments.next();
+                    Path path = resolvePath(name);
+                    if (Files.isDirectory(path)) {
+                        if (!recursive) {
+                            fail(command + ": " + name + ": Is a directory");
+                            continue;
+                        }
+                        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                                if (attrs.isRegularFile()) {
+                                    String shown = name.endsWith("/") ? name + path.relativize(file) : name + "/" + path.relativize(file);
+                                    engine.submit(file, shown);
+                                    writeHashes(engine.ready(false), out, command, false);
+                                }
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+                    } else {
+                        engine.submit(path, name);
+                        writeHashes(engine.ready(false), out, command, false);
+                    }
+                }
+                writeHashes(engine.ready(true), out, command, false);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
 
+    // sha256sum -c: "name: OK" or "name: FAILED" per line of the manifest
+    private void verifyManifest(String command, HashEngine engine, Path manifest, OutputSink out) throws IOException {
+        if (!Files.isRegularFile(manifest)) {
+            fail("Error: " + command + ": " + manifest + ": No such file");
+            return;
+        }
+        int[] failed = {0};
+        try (BufferedReader reader = Files.newBufferedReader(manifest)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                // <hash>  <name> (or <hash> *<name> for binary mode)
+                int space = line.indexOf(' ');
+                if (space <= 0 || space + 2 > line.length() || (line.charAt(space + 1) != ' ' && line.charAt(space + 1) != '*')) {
+                    fail(command + ": " + manifest.getFileName() + ": " + lineNumber + ": improperly formatted line");
+                    continue;
+                }
+                String expected = line.substring(0, space).toLowerCase();
+                String name = line.substring(space + 2);
+                engine.submit(resolvePath(name), name, expected);
+                failed[0] += writeHashes(engine.ready(false), out, command, true);
+            }
+        }
+        failed[0] += writeHashes(engine.ready(true), out, command, true);
+        if (failed[0] > 0) {
+            fail(command + ": WARNING: " + failed[0] + " computed checksum" + (failed[0] == 1 ? "" : "s") + " did NOT match");
+        }
     }
 
-    scanner.close();
-  }
+    // Writes the finished results in order, returns how many did not match (for -c)
+    private int writeHashes(List<HashEngine.Result> results, OutputSink out, String command, boolean verify) throws IOException {
+        int mismatches = 0;
+        for (HashEngine.Result result : results) {
+            if (result.error != null) {
+                fail(command + ": " + result.name + ": " + result.error);
+                if (verify) {
+                    out.println(result.name + ": FAILED open or read");
+                    mismatches++;
+                }
+            } else if (verify) {
+                boolean ok = result.hash.equals(result.expected);
+                out.println(result.name + (ok ? ": OK" : ": FAILED"));
+                if (!ok) {
+                    mismatches++;
+                }
+            } else {
+                out.println(result.hash + "  " + result.name);
+            }
+        }
+        return mismatches;
+    }
+
+    // grep [-r] [-c] [-l] [-n] [-i] [-F] [--jobs N] pattern [files or directories...]
+    // Without files grep reads its input (the previous stage of a pipeline).
+    // Status is 0 when something matched and 1 when nothing did, like the real grep.
+    public void grep(Arguments arguments, InputStream in, OutputSink out) throws IOException {
+        boolean recursive = false, countOnly = false, namesOnly = false, lineNumbers = false;
+        boolean ignoreCase = false, fixed = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String pattern = null;
 
-}
\ No newline at end of file
+        // The options, then the pattern, they come from the words as typed. Whatever follows
+        // the pattern is a file.
+        String[] args = arguments.words();
+        for (int i = 0; i < args.length && pattern == null; i++) {
+            String arg = args[i];
+            arguments.skip(i);
+            if (arg.equals("--jobs")) {
+                if (i + 1 == args.length) {
+                    fail("Error: --jobs needs a number");
+                    return;
+                }
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                    arguments.skip(i);
+                } catch (NumberFormatException e) {
+                    fail("Error: --jobs needs a number");
+                    return;
+                }
+            } else if (arg.startsWith("--")) {
+                fail("Error: grep: unknown option " + arg);
+                return;
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (char option : arg.substring(1).toCharArray()) {
+                    switch (option) {
+                        case 'r': recursive = true; break;
+                        case 'c': countOnly = true; break;
+                        case 'l': namesOnly = true; break;
+                        case 'n': lineNumbers = true; break;
+                        case 'i': ignoreCase = true; break;
+                        case 'F': fixed = true; break;
+                        default:
+                            fail("Error: grep: unknown option -" + option);
+                            return;
+                    }
+                }
+            } else {
+                pattern = arguments.option(i);
+            }
+        }
+        if (pattern == null) {
+            fail("Error: grep needs a pattern");
+            return;
+        }
+        if (jobs < 1) {
+            fail("Error: --jobs must be at least 1");
+            return;
+        }
+
+        // The files are read one at a time from the arguments, the first two tell whether the
+        // names are shown and whether a single file can be searched right here
+        List<String> operands = new ArrayList<>();
+        while (operands.size() < 2 && arguments.hasNext()) {
+            operands.add(arguments.next());
+        }
+
+        if (operands.isEmpty() && in == null && !recursive) {
+            fail("Error: grep needs a file (or input from a pipe)");
+            return;
+        }
+        if (operands.isEmpty() && recursive) {
+            operands.add(".");
+        }
+
+        GrepEngine engine;
+        try {
+            boolean withNames = recursive || operands.size() > 1;
+            engine = new GrepEngine(pattern, ignoreCase, fixed, countOnly, namesOnly, lineNumbers, withNames);
+        } catch (PatternSyntaxException e) {
+            fail("Error: grep: bad pattern: " + e.getDescription());
+            return;
+        }
+
+        // Input from the pipeline, or a single file: the matches go straight to the output
+        if (operands.isEmpty()) {
+            status = (engine.search(in, "(standard input)", out.asOutputStream()) > 0) ? 0 : 1;
+            return;
+        }
+        if (operands.size() == 1 && Files.isRegularFile(resolvePath(operands.get(0)))) {
+            status = (engine.search(resolvePath(operands.get(0)), operands.get(0), out.asOutputStream()) > 0) ? 0 : 1;
+            return;
+        }
+
+        // Files are searched in parallel, the results are written in the order of the files:
+        // the first pending file streams its output, the next ones buffer a bounded amount
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        int window = jobs * 4;
+        ArrayDeque<GrepTask> pending = new ArrayDeque<>();
+        long[] matchedFiles = {0};
+        Iterator<String> first = operands.iterator();
+        try {
+            while (first.hasNext() || arguments.hasNext()) {
+                String operand = first.hasNext() ? first.next() : arguments.next();
+                Path path = resolvePath(operand);
+                if (Files.isDirectory(path)) {
+                    if (!recursive) {
+                        fail("grep: " + operand + ": Is a directory");
+                        continue;
+                    }
+                    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            if (attrs.isRegularFile()) {
+                                String name = operand.endsWith("/") ? operand + path.relativize(file) : operand + "/" + path.relativize(file);
+                                pending.add(new GrepTask(workers, engine, file, name));
+                                writeGrepResults(pending, window, out, matchedFiles);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            fail("grep: " + file + ": " + e.getMessage());
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } else if (Files.isRegularFile(path)) {
+                    pending.add(new GrepTask(workers, engine, path, operand));
+                    writeGrepResults(pending, window, out, matchedFiles);
+                } else {
+                    fail("grep: " + operand + ": No such file or directory");
+                }
+            }
+            writeGrepResults(pending, 0, out, matchedFiles);
+        } finally {
+            workers.shutdownNow();
+        }
+        if (status == 0 && matchedFiles[0] == 0) {
+            status = 1;
+        }
+    }
+
+    // One file of a parallel grep and the output it writes
+    private static class GrepTask {
+        final GrepEngine.OrderedOutput output = new GrepEngine.OrderedOutput();
+        final Future<Long> matches;
+
+        GrepTask(ExecutorService workers, GrepEngine engine, Path file, String name) {
+            matches = workers.submit(() -> engine.search(file, name, output));
+        }
+    }
+
+    // Lets the files at the front write to the sink, in order, until at most "keep" are still pending
+    private void writeGrepResults(ArrayDeque<GrepTask> pending, int keep, OutputSink out, long[] matchedFiles) throws IOException {
+        while (pending.size() > keep) {
+            GrepTask task = pending.poll();
+            try {
+                task.output.attach(out);
+                if (task.matches.get() > 0) {
+                    matchedFiles[0]++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("grep interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Pipe.BrokenPipeException) {
+                    throw (Pipe.BrokenPipeException) e.getCause();
+                }
+                fail("grep: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    // sort [-n] [-r] [-k N[,M]] [-t c] [-S size] [files]
+    // Without files sort reads its input. Lines are bytes (one char per byte, ISO-8859-1),
+    // so the order is the byte order of LC_ALL=C sort and any file comes out unchanged.
+    // -S is the memory budget (512K, 256M, 2G...), a quarter of the heap by default: past it
+    // the lines are sorted in runs spilled to temp files and merged at the end (ExternalSorter).
+    public void sort(String[] args, InputStream in, OutputSink out) throws IOException {
+        boolean numeric = false, reverse = false;
+        int firstField = 0, lastField = 0;
+        char separator = 0;
+        long memory = Runtime.getRuntime().maxMemory() / 4;
+        List<Path> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                if ((arg.equals("-k") || arg.equals("-t") || arg.equals("-S")) && i + 1 == args.length) {
+                    fail("Error: sort: " + arg + " needs a value");
+                    return;
+                } else if (arg.equals("-k")) {
+                    String[] fields = args[++i].split(",", 2);
+                    firstField = Integer.parseInt(fields[0]);
+                    lastField = (fields.length > 1) ? Integer.parseInt(fields[1]) : 0;
+                    if (firstField < 1 || lastField < 0) {
+                        fail("Error: sort: fields are numbered from 1");
+                        return;
+                    }
+                } else if (arg.equals("-t")) {
+                    if (args[++i].length() != 1) {
+                        fail("Error: sort: the separator must be one character");
+                        return;
+                    }
+                    separator = args[i].charAt(0);
+                } else if (arg.equals("-S")) {
+                    memory = parseMemorySize(args[++i]);
+                } else if (arg.startsWith("-") && arg.length() > 1) {
+                    for (char option : arg.substring(1).toCharArray()) {
+                        switch (option) {
+                            case 'n': numeric = true; break;
+                            case 'r': reverse = true; break;
+                            default:
+                                fail("Error: sort: unknown option -" + option);
+                                return;
+                        }
+                    }
+                } else {
+                    files.add(resolvePath(arg));
+                }
+            } catch (NumberFormatException e) {
+                fail("Error: sort: bad number in " + arg + " " + args[i]);
+                return;
+            }
+        }
+        if (files.isEmpty() && in == null) {
+            fail("Error: sort needs a file (or input from a pipe)");
+            return;
+        }
+        for (Path file : files) {
+            if (!Files.isRegularFile(file)) {
+                fail("Error: file does not exist: " + file);
+                return;
+            }
+        }
+
+        LineOrder order = new LineOrder(numeric, reverse, firstField, lastField, separator);
+        try (ExternalSorter sorter = new ExternalSorter(order, Integer.MAX_VALUE, memory)) {
+            if (files.isEmpty()) {
+                forEachLine(in, sorter::add);
+            }
+            for (Path file : files) {
+                try (InputStream input = Files.newInputStream(file)) {
+                    IoCounters.file();
+                    forEachLine(input, sorter::add);
+                }
+            }
+            sorter.forEachSorted(line -> writeLine(line, out));
+        }
+    }
+
+    // uniq [-c] [-d] [file]: repeated lines next to each other are written once,
+    // -c puts the number of repeats in front, -d only writes the lines that were repeated
+    public void uniq(String[] args, InputStream in, OutputSink out) throws IOException {
+        boolean count = false, repeatedOnly = false;
+        Path file = null;
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                for (char option : arg.substring(1).toCharArray()) {
+                    switch (option) {
+                        case 'c': count = true; break;
+                        case 'd': repeatedOnly = true; break;
+                        default:
+                            fail("Error: uniq: unknown option -" + option);
+                            return;
+                    }
+                }
+            } else if (file == null) {
+                file = resolvePath(arg);
+            } else {
+                fail("Error: uniq takes at most one file");
+                return;
+            }
+        }
+        if (file == null && in == null) {
+            fail("Error: uniq needs a file (or input from a pipe)");
+            return;
+        }
+        if (file != null && !Files.isRegularFile(file)) {
+            fail("Error: file does not exist: " + file);
+            return;
+        }
+
+        UniqWriter writer = new UniqWriter(out, count, repeatedOnly);
+        if (file == null) {
+            forEachLine(in, writer::accept);
+        } else {
+            try (InputStream input = Files.newInputStream(file)) {
+                IoCounters.file();
+                forEachLine(input, writer::accept);
+            }
+        }
+        writer.finish();
+    }
+
+    // One group of equal lines is held back until the next different line
+    private static class UniqWriter {
+        private final OutputSink out;
+        private final boolean count;
+        private final boolean repeatedOnly;
+        private String previous = null;
+        private long repeats = 0;
+
+        UniqWriter(OutputSink out, boolean count, boolean repeatedOnly) {
+            this.out = out;
+            this.count = count;
+            this.repeatedOnly = repeatedOnly;
+        }
+
+        void accept(String line) throws IOException {
+            if (line.equals(previous)) {
+                repeats++;
+                return;
+            }
+            finish();
+            previous = line;
+            repeats = 1;
+        }
+
+        void finish() throws IOException {
+            if (previous == null || (repeatedOnly && repeats < 2)) {
+                return;
+            }
+            if (count) {
+                // "%7d " like uniq -c, without a String.format per line
+                String number = Long.toString(repeats);
+                for (int i = number.length(); i < 7; i++) {
+                    out.write(' ');
+                }
+                out.print(number);
+                out.write(' ');
+            }
+            writeLine(previous, out);
+        }
+    }
+
+    // Splits the input on '\n' only (a '\r' stays in the line), one char per byte
+    private static void forEachLine(InputStream in, ExternalSorter.RecordConsumer consumer) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            IoCounters.read(n);
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] != '\n') {
+                    continue;
+                }
+                if (lineLength == 0) {
+                    consumer.accept(new String(chunk, start, i - start, StandardCharsets.ISO_8859_1));
+                } else {
+                    line = appendBytes(line, lineLength, chunk, start, i - start);
+                    consumer.accept(new String(line, 0, lineLength + i - start, StandardCharsets.ISO_8859_1));
+                    lineLength = 0;
+                }
+                start = i + 1;
+            }
+            // The end of the chunk is the beginning of a line that goes on in the next one
+            line = appendBytes(line, lineLength, chunk, start, n - start);
+            lineLength += n - start;
+        }
+        if (lineLength > 0) {
+            consumer.accept(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static byte[] appendBytes(byte[] line, int lineLength, byte[] chunk, int start, int length) {
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        }
+        System.arraycopy(chunk, start, line, lineLength, length);
+        return line;
+    }
+
+    private static void writeLine(String line, OutputSink out) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+        out.write('\n');
+    }
+
+    // 4096, 512K, 256M, 2G (powers of 1024)
+    private static long parseMemorySize(String text) {
+        long unit = 1;
+        char last = Character.toUpperCase(text.isEmpty() ? ' ' : text.charAt(text.length() - 1));
+        if (last == 'K' || last == 'M' || last == 'G') {
+            unit = (last == 'K') ? 1024L : (last == 'M') ? 1024L * 1024 : 1024L * 1024 * 1024;
+            text = text.substring(0, text.length() - 1);
+        }
+        long size = Long.parseLong(text) * unit;
+        if (size < 1) {
+            throw new NumberFormatException(text);
+        }
+        return size;
+    }
+
+    // find [paths...] [-name glob] [-iname glob] [-regex re] [-type f|d|l] [-size [+-]N[c|k|M|G]]
+    //      [-mtime [+-]N] [-maxdepth N] [-prune glob] [--jobs N]
+    // Sizes are in bytes unless a unit is given, -mtime counts whole days like GNU find.
+    public void find(String[] args, OutputSink out) throws IOException {
+        List<String> roots = new ArrayList<>();
+        FindEngine.Filter filter = new FindEngine.Filter();
+        int jobs = FindEngine.DEFAULT_JOBS;
+        boolean inExpression = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            // Paths come first, then the expression
+            if (!arg.startsWith("-")) {
+                if (!inExpression) {
+                    roots.add(arg);
+                    continue;
+                }
+                fail("Error: find: unexpected argument " + arg);
+                return;
+            }
+            inExpression = true;
+            if (i + 1 >= args.length) {
+                fail("Error: find: " + arg + " needs a value");
+                return;
+            }
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "-name":
+                        filter.name(value, false);
+                        break;
+                    case "-iname":
+                        filter.name(value, true);
+                        break;
+                    case "-regex":
+                        filter.regex(value);
+                        break;
+                    case "-type":
+                        filter.type(value);
+                        break;
+                    case "-size":
+                        filter.size(value);
+                        break;
+                    case "-mtime":
+                        filter.mtime(value);
+                        break;
+                    case "-maxdepth":
+                        filter.maxDepth = Integer.parseInt(value);
+                        break;
+                    case "-prune":
+                        filter.prune(value);
+                        break;
+                    case "--jobs":
+                        jobs = Integer.parseInt(value);
+                        break;
+                    default:
+                        fail("Error: find: unknown option " + arg);
+                        return;
+                }
+            } catch (IllegalArgumentException e) {
+                fail("Error: find: bad value for " + arg + ": " + value);
+                return;
+            }
+        }
+        if (jobs < 1) {
+            fail("Error: --jobs must be at least 1");
+            return;
+        }
+        if (roots.isEmpty()) {
+            roots.add(".");
+        }
+
+        FindEngine engine = new FindEngine(filter, out, jobs);
+        try {
+            for (String root : roots) {
+                Path start = resolvePath(root);
+                if (!Files.exists(start, LinkOption.NOFOLLOW_LINKS)) {
+                    fail("Error: find: " + root + ": No such file or directory");
+                    continue;
+                }
+                engine.search(start, root);
+            }
+        } finally {
+            engine.shutdown();
+        }
+        for (String error : engine.getErrors()) {
+            fail("find: " + error);
+        }
+    }
+
+    // "cmd &": the command line runs on a job thread, on a copy of this terminal (so a cd in the
+    // job does not move the session) with its own output and error buffers. The buffers are
+    // shown when the job is reported as done (before the next prompt, or by jobs / wait).
+    private int startJob(String line, CommandLine commandLine) {
+        Terminal terminal = fork();
+        terminal.control = new JobControl();
+        ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+        terminal.setErrorStream(new PrintStream(errBuffer, true));
+        OutputSink out = new OutputSink(Channels.newChannel(outBuffer), false);
+
+        String text = line.trim();
+        text = text.substring(0, text.length() - 1).trim();
+        JobTable.Job job = jobs.start(text, terminal.control, outBuffer, errBuffer, () -> {
+            int result = terminal.runPipeline(commandLine, out);
+            out.flush();
+            return result;
+        });
+        err.println("[" + job.id + "] " + job.text);
+        return 0;
+    }
+
+    // Shows what finished background jobs printed, then "[n] Done  cmd"
+    void reportFinishedJobs(OutputSink out) throws IOException {
+        for (JobTable.Job job : jobs.takeFinished()) {
+            showJobOutput(job, out);
+        }
+    }
+
+    private void showJobOutput(JobTable.Job job, OutputSink out) throws IOException {
+        byte[] output = job.output.toByteArray();
+        out.write(output, 0, output.length);
+        out.flush();
+        byte[] errors = job.errors.toByteArray();
+        err.write(errors, 0, errors.length);
+        err.println("[" + job.id + "] " + job.state() + "  " + job.text);
+        err.flush();
+    }
+
+    // jobs: every job with its state, running time and progress
+    public void listJobs(OutputSink out) throws IOException {
+        for (JobTable.Job job : jobs.list()) {
+            out.println(job.describe());
+        }
+        out.flush();
+        reportFinishedJobs(out);
+    }
+
+    // wait [%n...]: waits for the given jobs (all of them without arguments), showing their
+    // progress every second on a terminal. Status is the status of the last one.
+    public void waitJobs(String[] args, OutputSink out) throws IOException {
+        List<JobTable.Job> waited = selectJobs(args);
+        if (waited == null) {
+            return;
+        }
+        boolean showProgress = System.console() != null;
+        for (JobTable.Job job : waited) {
+            if (job.control == control) {
+                continue;       // a job cannot wait for itself
+            }
+            while (!job.await(1, TimeUnit.SECONDS)) {
+                if (showProgress) {
+                    err.println(job.describe());
+                    err.flush();
+                }
+            }
+            if (jobs.remove(job)) {
+                showJobOutput(job, out);
+            }
+            status = job.status();
+        }
+    }
+
+    // kill %n...: stops the jobs (their engines stop at the next file or block)
+    public void killJobs(String[] args) {
+        if (args.length == 0) {
+            fail("Error: kill needs a job (kill %1)");
+            return;
+        }
+        List<JobTable.Job> killed = selectJobs(args);
+        if (killed == null) {
+            return;
+        }
+        for (JobTable.Job job : killed) {
+            job.cancel();
+        }
+    }
+
+    // "%1" or "1" for each argument, every job when there is none. Null after an error.
+    private List<JobTable.Job> selectJobs(String[] args) {
+        if (args.length == 0) {
+            return jobs.list();
+        }
+        List<JobTable.Job> selected = new ArrayList<>();
+        for (String arg : args) {
+            String number = arg.startsWith("%") ? arg.substring(1) : arg;
+            JobTable.Job job;
+            try {
+                job = jobs.get(Integer.parseInt(number));
+            } catch (NumberFormatException e) {
+                job = null;
+            }
+            if (job == null) {
+                fail("Error: no such job: " + arg);
+                return null;
+            }
+            selected.add(job);
+        }
+        return selected;
+    }
+
+    // stats [--reset]: time, I/O and allocation of every command run so far
+    public void stats(String[] args, OutputSink out) throws IOException {
+        boolean reset = false;
+        for (String arg : args) {
+            if (arg.equals("--reset")) {
+                reset = true;
+            } else {
+                fail("Error: stats: unknown option " + arg);
+                return;
+            }
+        }
+        CommandStats.report(out);
+        if (reset) {
+            CommandStats.reset();
+        }
+    }
+
+    // du [-s] [-h] [-d N] [--apparent-size] [--cache[=file]] [--jobs N] [paths...]
+    // Prints the size of every directory (in KiB, or human readable with -h), children first.
+    // Allocated size by default, the sum of the file sizes with --apparent-size.
+    // --cache keeps what was found per directory so the next run only rescans what changed.
+    public void du(Arguments arguments, OutputSink out) throws IOException {
+        boolean human = false;
+        boolean apparent = false;
+        int maxDepth = Integer.MAX_VALUE;
+        int jobs = DuEngine.DEFAULT_JOBS;
+        Path cacheFile = null;
+
+        // The options come from the words as typed, the paths are read one at a time further down
+        String[] args = arguments.words();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-") || arg.length() == 1) {
+                continue;
+            }
+            arguments.skip(i);
+            try {
+                if (arg.equals("-s")) {
+                    maxDepth = 0;
+                } else if (arg.equals("-h")) {
+                    human = true;
+                } else if (arg.equals("-sh") || arg.equals("-hs")) {
+                    maxDepth = 0;
+                    human = true;
+                } else if (arg.equals("-d") && i + 1 < args.length) {
+                    maxDepth = Integer.parseInt(args[++i]);
+                    arguments.skip(i);
+                } else if (arg.equals("--apparent-size")) {
+                    apparent = true;
+                } else if (arg.equals("--cache")) {
+                    cacheFile = homePath.resolve(".cache").resolve("cli-du.cache");
+                } else if (arg.startsWith("--cache=")) {
+                    cacheFile = resolvePath(arg.substring("--cache=".length()));
+                } else if (arg.equals("--jobs") && i + 1 < args.length) {
+                    jobs = Integer.parseInt(args[++i]);
+                    arguments.skip(i);
+                } else {
+                    fail("Error: du: unknown option " + arg);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                fail("Error: " + arg + " needs a number");
+                return;
+            }
+        }
+        if (jobs < 1 || maxDepth < 0) {
+            fail("Error: du: --jobs must be at least 1 and -d at least 0");
+            return;
+        }
+        if (!arguments.hasOperands()) {
+            arguments = new Arguments(currentPath, new String[] {"."}, null);
+        }
+
+        DuEngine engine = new DuEngine(jobs, cacheFile);
+        try {
+            while (arguments.hasNext()) {
+                String root = arguments.next();
+                Path start = resolvePath(root);
+                if (!Files.exists(start, LinkOption.NOFOLLOW_LINKS)) {
+                    fail("du: cannot access '" + root + "': No such file or directory");
+                    continue;
+                }
+                DuEngine.Node node = engine.measure(start, root);
+                printDu(node, 0, maxDepth, human, apparent, out);
+            }
+        } finally {
+            engine.shutdown();
+        }
+        for (String error : engine.getErrors()) {
+            fail("du: " + error);
+        }
+    }
+
+    // Children before their parent, like du
+    private void printDu(DuEngine.Node node, int depth, int maxDepth, boolean human, boolean apparent, OutputSink out) throws IOException {
+        if (depth < maxDepth) {
+            for (DuEngine.Node child : node.children) {
+                printDu(child, depth + 1, maxDepth, human, apparent, out);
+            }
+        }
+        long size = apparent ? node.totalApparent : node.totalAllocated;
+        String shown = human ? DuEngine.humanSize(size) : Long.toString((size + 1023) / 1024);
+        out.println(shown + "\t" + node.display);
+    }
+
+    private Path resolvePath(String pathStr) {
+    Path path = Paths.get(pathStr);
+    if (!path.isAbsolute()) {
+        path = currentPath.resolve(path).normalize().toAbsolutePath();
+    } else {
+        path = path.normalize().toAbsolutePath();
+    }
+    return path;
+}
+
+    // Reports an error and marks the current command as failed
+    void fail(String message) {
+        err.println(message);
+        status = 1;
+    }
+
+    void setErrorStream(PrintStream stream) {
+        err = stream;
+        parser.err = stream;
+    }
+
+    // A copy of this terminal (same directory) for a command that runs on another thread
+    Terminal fork() {
+        Terminal copy = new Terminal();
+        copy.currentPath = currentPath;
+        copy.trace = trace;
+        copy.jobs = jobs;
+        copy.control = control;
+        copy.setErrorStream(err);
+        return copy;
+    }
+
+    // Parses and runs one command line, returns its exit status.
+    // The output goes to "stdout" unless the line redirects it; stdout is not flushed here,
+    // so a batch of commands shares one buffer.
+    int execute(String line, OutputSink stdout) {
+        if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+            return status = 0;
+        }
+        if (!parser.parse(line)) {
+            return status = 2;
+        }
+        CommandLine commandLine = parser.getCommandLine();
+
+        //  Exit condition, "exit N" sets the exit status
+        if (commandLine.size() == 1 && parser.getCommandName().equals("exit")) {
+            exitRequested = true;
+            String[] exitArgs = parser.getArgs();
+            try {
+                return status = (exitArgs.length > 0) ? Integer.parseInt(exitArgs[0]) : status;
+            } catch (NumberFormatException e) {
+                fail("Error: exit needs a number");
+                return status = 2;
+            }
+        }
+
+        if (commandLine.background) {
+            return status = startJob(line, commandLine.copy());
+        }
+        return status = runPipeline(commandLine, stdout);
+    }
+
+    // Runs "cmd1 | cmd2 | ...". Every stage runs at the same time on its own thread, with its own
+    // copy of the terminal. Neighbour stages are connected by a bounded Pipe, so a fast writer
+    // waits for a slow reader and memory stays the same whatever the amount of data.
+    // A single command runs right here, on this terminal, so that cd keeps working.
+    // Returns the exit status of the last stage.
+    public int runPipeline(CommandLine line, OutputSink stdout) {
+        int count = line.size();
+        if (count == 1) {
+            runStage(line.get(0), null, stdout);
+            return status;
+        }
+
+        Pipe[] pipes = new Pipe[count - 1];
+        for (int i = 0; i < pipes.length; i++) {
+            pipes[i] = new Pipe(Pipe.DEFAULT_CAPACITY);
+        }
+
+        List<Future<?>> running = new ArrayList<>();
+        Terminal lastStage = null;
+        for (int i = 0; i < count; i++) {
+            CommandLine.Command command = line.get(i);
+            InputStream in = (i == 0) ? null : pipes[i - 1].source();
+            OutputSink stageOut = (i == count - 1) ? stdout : new OutputSink(Channels.newChannel(pipes[i].sink()), true);
+            Terminal stageTerminal = fork();
+            lastStage = stageTerminal;
+
+            running.add(PIPELINE_THREADS.submit(() -> {
+                try {
+                    stageTerminal.runStage(command, in, stageOut);
+                } finally {
+                    // The next stage sees the end of its input, the previous one stops writing
+                    if (stageOut != stdout) {
+                        stageOut.close();
+                    } else {
+                        stageOut.flush();
+                    }
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        int result = 0;
+        for (Future<?> stage : running) {
+            try {
+                stage.get();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof Pipe.BrokenPipeException)) {
+                    fail("Error: " + e.getCause().getMessage());
+                    result = 1;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 1;
+            }
+        }
+        return (result != 0) ? result : lastStage.status;
+    }
+
+    // Runs one command of a pipeline with its own redirections (<, >, >>, 2>, 2>>) applied over
+    // the input and output it got from the pipeline. Sets status.
+    private void runStage(CommandLine.Command command, InputStream pipeIn, OutputSink pipeOut) {
+        status = 0;
+        CommandStats.Sample sample = CommandStats.start(command.name, command.args, trace);
+        PrintStream savedErr = err;
+        InputStream in = pipeIn;
+        OutputSink out = pipeOut;
+        try {
+            if (command.errorFile != null) {
+                Path errorPath = resolvePath(command.errorFile);
+                setErrorStream(new PrintStream(Files.newOutputStream(errorPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        command.errorAppend ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING), true));
+            }
+            if (command.inputFile != null) {
+                Path inputPath = resolvePath(command.inputFile);
+                if (!Files.isRegularFile(inputPath)) {
+                    fail("Error: file does not exist: " + inputPath);
+                    return;
+                }
+                in = Files.newInputStream(inputPath);
+            }
+            if (command.outputFile != null) {
+                try {
+                    out = OutputSink.toFile(resolvePath(command.outputFile), command.append);
+                } catch (IOException e) {
+                    fail("Error writing to file: " + e.getMessage());
+                    return;
+                }
+            }
+
+            runCommand(command.name, command.args, command.patterns, in, out);
+        } catch (Pipe.BrokenPipeException e) {
+            // the next stage stopped reading, nothing to report
+        } catch (IOException e) {
+            fail("Error: " + e.getMessage());
+        } finally {
+            try {
+                if (in != pipeIn) {
+                    in.close();
+                }
+                if (out != pipeOut) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                fail("Error writing output: " + e.getMessage());
+            }
+            if (err != savedErr) {
+                err.close();
+                setErrorStream(savedErr);
+            }
+            // Recorded after the redirect files are closed, that is part of the cost
+            sample.stop(status);
+            if (trace) {
+                err.println(sample.traceLine());
+                err.flush();
+            }
+        }
+    }
+
+    // Runs one command. "in" is the output of the previous pipeline stage (null if there is none),
+    // everything the command prints goes to "out": the terminal, a redirect file or the next stage.
+    // Globs are expanded here: the commands that go through their paths one at a time take the
+    // matches from an Arguments iterator (see lazyArguments), the other commands get them in
+    // args, sorted per pattern like in sh.
+    private void runCommand(String cmd, String[] args, String[] patterns, InputStream in, OutputSink out) throws IOException {
+        control.checkCancelled();
+
+        Arguments lazy = lazyArguments(cmd, args, patterns);
+        if (lazy != null) {
+            try (Arguments arguments = lazy) {
+                switch (cmd) {
+                    case "rm":
+                        rm(arguments, out);
+                        break;
+                    case "rmdir":
+                        rmdir(arguments);
+                        break;
+                    case "cp":
+                    case "sync":
+                        cp(arguments, out);
+                        break;
+                    case "touch":
+                        touch(arguments);
+                        break;
+                    case "cat":
+                        cat(arguments, in, out);
+                        break;
+                    case "wc":
+                        wc(arguments, in, out);
+                        break;
+                    case "du":
+                        du(arguments, out);
+                        break;
+                    case "sha256sum":
+                        checksum("SHA-256", arguments, in, out);
+                        break;
+                    case "md5sum":
+                        checksum("MD5", arguments, in, out);
+                        break;
+                    case "crc32":
+                        checksum("CRC32", arguments, in, out);
+                        break;
+                    case "grep":
+                        grep(arguments, in, out);
+                        break;
+                    default:
+                        // lazyArguments and this switch list the same commands
+                        throw new IllegalStateException("no lazy arguments for " + cmd);
+                }
+            }
+            return;
+        }
+        if (patterns != null) {
+            args = Glob.expand(currentPath, args, patterns);
+        }
+
+        switch (cmd) {
+            case "pwd":
+                out.println(pwd());
+                break;
+        
+            case("ls"):
+                ls(args, out);
+                break;
+                
+            case("cd"):
+                cd(args);
+                break; 
+            
+            case("mkdir"):
+                mkdir(args);
+                break;
+
+            case "stats":
+                stats(args, out);
+                break;
+
+            case "jobs":
+                listJobs(out);
+                break;
+
+            case "wait":
+                waitJobs(args, out);
+                break;
+
+            case "kill":
+                killJobs(args);
+                break;
+
+            case "zip":
+                zip(args, out);
+                break;  
+
+            case "unzip":
+                unzip(args, out);
+                break; 
+
+            case "find":
+                find(args, out);
+                break;
+
+            case "sort":
+                sort(args, in, out);
+                break;
+
+            case "uniq":
+                uniq(args, in, out);
+                break;
+
+            case "head":
+                head(args, in, out);
+                break;
+
+            case "tail":
+                tail(args, in, out);
+                break;
+
+            default:
+                err.println("Command Not Found");
+                status = 127;
+                break;
+        }
+        
+
+    }
+
+
+    // The arguments of the commands that take their paths one at a time, null for the others.
+    // rm, rmdir and touch get the matches in directory order; the commands whose output or
+    // result follows the order of the paths get the matches of each pattern sorted.
+    private Arguments lazyArguments(String cmd, String[] args, String[] patterns) {
+        switch (cmd) {
+            case "rm":
+            case "rmdir":
+            case "touch":
+                return new Arguments(currentPath, args, patterns);
+            case "cp":
+            case "cat":
+            case "wc":
+            case "du":
+            case "sha256sum":
+            case "md5sum":
+            case "crc32":
+            case "grep":
+                return new Arguments(currentPath, args, patterns, true);
+            case "sync":
+                // cp -r -u
+                String[] words = new String[args.length + 2];
+                words[0] = "-r";
+                words[1] = "-u";
+                System.arraycopy(args, 0, words, 2, args.length);
+                String[] wordPatterns = null;
+                if (patterns != null) {
+                    wordPatterns = new String[words.length];
+                    System.arraycopy(patterns, 0, wordPatterns, 2, patterns.length);
+                }
+                return new Arguments(currentPath, words, wordPatterns, true);
+            default:
+                return null;
+        }
+    }
+
+    // Interactive session: a prompt per line, output flushed after every command
+    void interactive() throws IOException {
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        while (!exitRequested) {
+            reportFinishedJobs(OutputSink.stdout());
+            System.out.print(currentPath + "> ");
+            System.out.flush();
+
+            //  Read user input, end of input (Ctrl-D) ends the session
+            String command = input.readLine();
+            if (command == null) {
+                System.out.println();
+                break;
+            }
+
+            //  Execute the command (or the pipeline), streaming its output
+            OutputSink out = OutputSink.stdout();
+            execute(command, out);
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail("Error writing output: " + e.getMessage());
+            }
+        }
+
+        // Jobs do not outlive the session
+        for (JobTable.Job job : jobs.list()) {
+            job.cancel();
+        }
+    }
+
+    // Commands that only read the file system: with --jobs they may overlap each other
+    // (tail only when it does not follow its file, see isBatchBarrier)
+    private static final Set<String> READ_ONLY_COMMANDS = new HashSet<>(Arrays.asList(
+            "pwd", "ls", "cat", "wc", "find", "grep", "du", "sha256sum", "md5sum", "crc32", "sort",
+            "uniq", "head", "tail"));
+
+    // Batch mode: no prompt, one shared stdout buffer, returns the exit status of the script.
+    // With jobs > 1 consecutive commands run concurrently on copies of the terminal and their
+    // output is written back in script order. Anything else than a read-only command (cd, exit,
+    // mkdir, cp, ..., a line that writes to a file, a background job) is a barrier: it waits for
+    // everything before it and the commands after it wait for it.
+    int runBatch(BufferedReader input, OutputSink stdout, int jobs, boolean stopOnError, boolean timing) throws IOException {
+        long commands = 0;
+        long start = System.nanoTime();
+        int result = 0;
+
+        ExecutorService workers = (jobs > 1) ? Executors.newFixedThreadPool(jobs) : null;
+        ArrayDeque<Future<BatchResult>> pending = new ArrayDeque<>();
+        // Only classifies the lines, syntax errors are reported when the line runs
+        Parser classifier = new Parser();
+        classifier.err = new PrintStream(OutputStream.nullOutputStream());
+        try {
+            String line;
+            while (!exitRequested && (line = input.readLine()) != null) {
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                commands++;
+
+                if (workers == null || isBatchBarrier(classifier, line)) {
+                    // Runs here, after everything queued before it
+                    while (!pending.isEmpty()) {
+                        result = writeBatchResult(pending.poll(), stdout);
+                        if (stopOnError && result != 0) {
+                            return result;
+                        }
+                    }
+                    result = execute(line, stdout);
+                    reportFinishedJobs(stdout);
+                } else {
+                    Terminal job = fork();
+                    String command = line;
+                    pending.add(workers.submit(() -> job.executeBuffered(command)));
+                    while (pending.size() > jobs * 16) {
+                        result = writeBatchResult(pending.poll(), stdout);
+                        if (stopOnError && result != 0) {
+                            return result;
+                        }
+                    }
+                }
+                if (stopOnError && result != 0) {
+                    return result;
+                }
+            }
+            while (!pending.isEmpty()) {
+                result = writeBatchResult(pending.poll(), stdout);
+                if (stopOnError && result != 0) {
+                    return result;
+                }
+            }
+            return result;
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            // The script ends when its background jobs are done
+            for (JobTable.Job job : this.jobs.list()) {
+                job.awaitUninterruptibly();
+            }
+            reportFinishedJobs(stdout);
+            stdout.flush();
+            if (timing) {
+                double millis = (System.nanoTime() - start) / 1e6;
+                err.println(String.format("%d commands in %.1f ms (%.2f us per command)",
+                        commands, millis, commands == 0 ? 0.0 : millis * 1000 / commands));
+            }
+        }
+    }
+
+    private static boolean isBatchBarrier(Parser classifier, String line) {
+        if (!classifier.parse(line)) {
+            return true;
+        }
+        CommandLine commandLine = classifier.getCommandLine();
+        if (commandLine.background) {
+            return true;
+        }
+        for (int i = 0; i < commandLine.size(); i++) {
+            CommandLine.Command command = commandLine.get(i);
+            if (command.outputFile != null || command.errorFile != null
+                    || !READ_ONLY_COMMANDS.contains(command.name)) {
+                return true;
+            }
+            // tail -f never ends: buffered on a worker its output would never come out, here it
+            // streams straight to stdout like in the interactive shell
+            if (command.name.equals("tail")
+                    && (Arrays.asList(command.args).contains("-f") || Arrays.asList(command.args).contains("-F"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Output of one command that ran concurrently in batch mode
+    private static class BatchResult {
+        final byte[] out;
+        final byte[] err;
+        final int status;
+
+        BatchResult(byte[] out, byte[] err, int status) {
+            this.out = out;
+            this.err = err;
+            this.status = status;
+        }
+    }
+
+    private BatchResult executeBuffered(String line) throws IOException {
+        ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+        setErrorStream(new PrintStream(errBuffer, true));
+        OutputSink out = new OutputSink(Channels.newChannel(outBuffer), false);
+        int result = execute(line, out);
+        out.flush();
+        return new BatchResult(outBuffer.toByteArray(), errBuffer.toByteArray(), result);
+    }
+
+    private int writeBatchResult(Future<BatchResult> pending, OutputSink stdout) throws IOException {
+        try {
+            BatchResult result = pending.get();
+            stdout.write(result.out, 0, result.out.length);
+            if (result.err.length > 0) {
+                stdout.flush();
+                err.write(result.err, 0, result.err.length);
+                err.flush();
+            }
+            return status = result.status;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch interrupted");
+        } catch (ExecutionException e) {
+            fail("Error: " + e.getCause().getMessage());
+            return status;
+        }
+    }
+
+    //  Usage: Terminal                  interactive session
+    //         Terminal -c "command"     run one command line
+    //         Terminal -f script.txt    run a script
+    //         ... < script.txt          stdin that is not a terminal is read as a script
+    //  Batch options: -e stop at the first failing command, --jobs N run commands concurrently,
+    //  --time print the time spent per command at the end
+    //  --trace print the time, I/O and allocation of every command after it (also interactive)
+    //         Terminal --daemon [--socket path]           serve sessions on a Unix domain socket
+    //         Terminal --connect [--socket path] ...      run -c, -f or stdin in the daemon
+    //  bin/cli-connect does what --connect does without starting a JVM (socat or nc -U)
+public static void main(String[] args) throws IOException {
+    Terminal terminal = new Terminal();
+    String command = null;
+    Path script = null;
+    int jobs = 1;
+    boolean stopOnError = false;
+    boolean timing = false;
+    boolean daemon = false;
+    boolean connect = false;
+    Path socket = DaemonServer.defaultSocket();
+
+    for (int i = 0; i < args.length; i++) {
+        try {
+            if (args[i].equals("-c") && i + 1 < args.length) {
+                command = args[++i];
+            } else if (args[i].equals("-f") && i + 1 < args.length) {
+                script = Paths.get(args[++i]);
+            } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+                jobs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-e")) {
+                stopOnError = true;
+            } else if (args[i].equals("--time")) {
+                timing = true;
+            } else if (args[i].equals("--trace")) {
+                terminal.trace = true;
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+            } else if (args[i].equals("--connect")) {
+                connect = true;
+            } else if (args[i].equals("--socket") && i + 1 < args.length) {
+                socket = Paths.get(args[++i]).toAbsolutePath();
+            } else {
+                System.err.println("Error: unknown option " + args[i]);
+                System.exit(2);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: --jobs needs a number");
+            System.exit(2);
+        }
+    }
+
+    if (daemon) {
+        terminal.setErrorStream(System.err);
+        DaemonServer.serve(terminal, socket);
+        System.exit(0);
+    }
+
+    //  No script and a real terminal: interactive session
+    if (command == null && script == null && !connect && System.console() != null) {
+        terminal.interactive();
+        System.exit(terminal.status);
+    }
+
+    //  Batch mode: no prompt, errors on stderr, exit code of the last command
+    terminal.setErrorStream(System.err);
+    BufferedReader input;
+    if (command != null) {
+        input = new BufferedReader(new StringReader(command));
+    } else if (script != null) {
+        input = Files.newBufferedReader(script);
+    } else {
+        input = new BufferedReader(new InputStreamReader(System.in), BATCH_READ_BUFFER);
+    }
+    int result;
+    try (input) {
+        if (connect) {
+            result = DaemonClient.run(socket, input, jobs, stopOnError);
+        } else {
+            result = terminal.runBatch(input, OutputSink.stdout(), jobs, stopOnError, timing);
+        }
+    } catch (IOException e) {
+        System.err.println("Error: " + e.getMessage());
+        result = 1;
+    }
+    System.exit(result);
+  }
+
+}
+
+
+// Incremental line scanner used by "cat -n" and "cat -A".
+// Bytes are fed in chunks, so a line can be split over two chunks (or two files)
+// and nothing bigger than one buffer is ever kept in memory.
+class LineFormatter {
+    private final OutputSink out;
+    private final boolean numberLines;
+    private final boolean showAll;
+    private long lineNumber = 0;
+    private boolean atLineStart = true;
+
+    LineFormatter(OutputSink out, boolean numberLines, boolean showAll) {
+        this.out = out;
+        this.numberLines = numberLines;
+        this.showAll = showAll;
+    }
+
+    public void feed(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            int b = chunk.get() & 0xFF;
+
+            // Number the line when its first byte shows up
+            if (atLineStart && numberLines) {
+                lineNumber++;
+                out.print(String.format("%6d\t", lineNumber));
+            }
+            atLineStart = false;
+
+            if (b == '\n') {
+                if (showAll) {
+                    out.write('$');
+                }
+                out.write('\n');
+                atLineStart = true;
+            } else if (showAll) {
+                putVisible(b);
+            } else {
+                out.write(b);
+            }
+        }
+    }
+
+    // Same notation as GNU cat -A: ^X for control chars, M- for bytes above 127
+    private void putVisible(int b) throws IOException {
+        if (b >= 128) {
+            out.write('M');
+            out.write('-');
+            b -= 128;
+        }
+        if (b < 32) {
+            out.write('^');
+            out.write(b + 64);
+        } else if (b == 127) {
+            out.write('^');
+            out.write('?');
+        } else {
+            out.write(b);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
+
+
+// Counting engine behind "wc".
+// The file is read in one pass over memory-mapped segments. Big files are split into
+// ranges that are counted in parallel on the ForkJoin pool, then the partial results
+// are joined back together, taking care of words that were cut in two at a range boundary.
+class WordCounter {
+    // Ranges smaller than this are counted by a single task
+    static final long SPLIT_SIZE = 16L * 1024 * 1024;
+
+    // Same whitespace as the old "\\s+" regex: space, \t, \n, \u000B, \f, \r
+    private static final boolean[] SPACE = new boolean[256];
+    static {
+        for (char c : new char[] {' ', '\t', '\n', 0x0B, '\f', '\r'}) {
+            SPACE[c] = true;
+        }
+    }
+
+    static class Counts {
+        long lines;
+        long words;
+        long bytes;
+        long chars;
+        // Used to glue two neighbour ranges: was the range cut in the middle of a word?
+        boolean startsInWord;
+        boolean endsInWord;
+
+        // Add the counts of the range that comes right after this one
+        Counts append(Counts next) {
+            if (next.bytes == 0) {
+                return this;
+            }
+            if (bytes == 0) {
+                return next;
+            }
+            Counts result = new Counts();
+            result.lines = lines + next.lines;
+            result.words = words + next.words - ((endsInWord && next.startsInWord) ? 1 : 0);
+            result.bytes = bytes + next.bytes;
+            result.chars = chars + next.chars;
+            result.startsInWord = startsInWord;
+            result.endsInWord = next.endsInWord;
+            return result;
+        }
+
+        // Add the counts of another file (for the total line)
+        void add(Counts other) {
+            lines += other.lines;
+            words += other.words;
+            bytes += other.bytes;
+            chars += other.chars;
+        }
+
+        String format(boolean showLines, boolean showWords, boolean showChars, boolean showBytes) {
+            StringBuilder sb = new StringBuilder();
+            if (showLines) sb.append(lines).append(' ');
+            if (showWords) sb.append(words).append(' ');
+            if (showChars) sb.append(chars).append(' ');
+            if (showBytes) sb.append(bytes).append(' ');
+            return sb.toString().trim();
+        }
+    }
+
+    public static Counts count(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            IoCounters.file();
+            IoCounters.read(size);
+            if (size == 0) {
+                return new Counts();
+            }
+            // invoke() runs in the pool of the calling worker, or in the common pool
+            return new RangeTask(channel, 0, size).invoke();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class RangeTask extends RecursiveTask<Counts> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        RangeTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (end - start <= SPLIT_SIZE) {
+                try {
+                    return countRange(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long middle = start + (end - start) / 2;
+            RangeTask left = new RangeTask(channel, start, middle);
+            RangeTask right = new RangeTask(channel, middle, end);
+            left.fork();
+            Counts rightCounts = right.compute();
+            return left.join().append(rightCounts);
+        }
+    }
+
+    // Single pass over one mapped range: lines, words, bytes and UTF-8 chars together
+    private static Counts countRange(MappedByteBuffer data) {
+        Counts counts = new Counts();
+        byte[] block = new byte[Terminal.CHUNK_SIZE];
+        while (data.hasRemaining()) {
+            int length = Math.min(block.length, data.remaining());
+            data.get(block, 0, length);
+            countBlock(block, length, counts);
+        }
+        return counts;
+    }
+
+    // Input of unknown size (a pipe): one sequential pass, one buffer
+    public static Counts count(InputStream in) throws IOException {
+        Counts counts = new Counts();
+        byte[] block = new byte[Terminal.CHUNK_SIZE];
+        int length;
+        while ((length = in.read(block)) != -1) {
+            countBlock(block, length, counts);
+        }
+        return counts;
+    }
+
+    // Adds one block to the counts, endsInWord carries the word state to the next block
+    private static void countBlock(byte[] block, int length, Counts counts) {
+        long lines = 0, words = 0, chars = 0;
+        boolean inWord = counts.endsInWord;
+
+        for (int i = 0; i < length; i++) {
+            int b = block[i] & 0xFF;
+            if (b == '\n') {
+                lines++;
+            }
+            // Every byte that is not a UTF-8 continuation byte starts a new char
+            if ((b & 0xC0) != 0x80) {
+                chars++;
+            }
+            if (SPACE[b]) {
+                inWord = false;
+            } else if (!inWord) {
+                inWord = true;
+                words++;
+            }
+        }
+
+        if (counts.bytes == 0 && length > 0) {
+            counts.startsInWord = !SPACE[block[0] & 0xFF];
+        }
+        counts.lines += lines;
+        counts.words += words;
+        counts.chars += chars;
+        counts.bytes += length;
+        counts.endsInWord = inWord;
+    }
+}
+
+
+// Copy engine behind "cp -r".
+// The calling thread walks the source tree and creates every directory before
+// anything inside it is copied, the file copies themselves run on a fixed pool of
+// workers. The work queue is bounded: when it is full the walker copies the file
+// itself, so huge trees never pile up millions of pending tasks.
+// Errors do not stop the copy, they are collected and shown in the summary.
+// In update mode (cp -u / sync) a file is only copied when the destination differs in size
+// or modification time (or content, with --checksum), and copies keep the source time so
+// the next run can skip them again: a repeated sync costs a metadata scan. With --delete
+// the walker also removes what the destination has and the source does not.
+class CopyEngine {
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+
+    private final ThreadPoolExecutor workers;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private long endTime;
+    private boolean updateOnly = false;
+    private boolean checksum = false;
+    private boolean deleteExtraneous = false;
+    private boolean verify = false;
+    private final LongAdder verified = new LongAdder();
+    private JobControl control = JobControl.NONE;
+    private final LargeFileCopier largeFiles;
+
+    // Files of LargeFileCopier.LARGE_FILE bytes and more are copied in ranges by largeFiles
+    CopyEngine(int jobs, LargeFileCopier largeFiles) {
+        workers = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(jobs * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.largeFiles = largeFiles;
+    }
+
+    // Skip files that did not change, "checksum" compares the content instead of the time
+    public void setUpdateOnly(boolean checksum) {
+        this.updateOnly = true;
+        this.checksum = checksum;
+    }
+
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+    // Read every copy back and compare it with the source
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    // Progress goes to the job, and the walk stops once the job is killed
+    public void setControl(JobControl control) {
+        this.control = control;
+    }
+
+    // Same size and same modification time (or same bytes): nothing to copy
+    static boolean isUpToDate(Path file, BasicFileAttributes attrs, Path targetFile, boolean checksum) throws IOException {
+        BasicFileAttributes target;
+        try {
+            target = Files.readAttributes(targetFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!target.isRegularFile() || target.size() != attrs.size()) {
+            return false;
+        }
+        if (checksum) {
+            if (Files.mismatch(file, targetFile) != -1) {
+                return false;
+            }
+            // Same content: take over the time so a later sync without --checksum skips it too
+            if (!target.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                Files.setLastModifiedTime(targetFile, attrs.lastModifiedTime());
+            }
+            return true;
+        }
+        return target.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+    }
+
+    public void copyTree(Path source, Path destination) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (control.isCancelled()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                // Create the corresponding directory in the destination before its files are queued
+                Path targetDir = destination.resolve(source.relativize(dir));
+                try {
+                    Files.createDirectories(targetDir);
+                    directories.increment();
+                } catch (IOException e) {
+                    errors.add(targetDir + ": cannot create directory (" + FileErrors.describe(e) + ")");
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (deleteExtraneous) {
+                    try {
+                        deleteExtraneous(dir, targetDir);
+                    } catch (IOException e) {
+                        errors.add(targetDir + ": cannot delete extraneous entries (" + FileErrors.describe(e) + ")");
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (control.isCancelled()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                Path targetFile = destination.resolve(source.relativize(file));
+                workers.execute(() -> copyOne(file, targetFile, attrs));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                errors.add(file + ": cannot read (" + FileErrors.describe(e) + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void copyOne(Path file, Path targetFile, BasicFileAttributes attrs) {
+        if (control.isCancelled()) {
+            return;
+        }
+        try {
+            if (LargeFileCopier.isSameFile(file, targetFile)) {
+                errors.add("'" + file + "' and '" + targetFile + "' are the same file");
+                return;
+            }
+            if (updateOnly) {
+                if (isUpToDate(file, attrs, targetFile, checksum)) {
+                    skipped.increment();
+                    return;
+                }
+            }
+            if (attrs.size() >= LargeFileCopier.LARGE_FILE || largeFiles.hasJournal(targetFile)) {
+                // the copier reports its progress chunk by chunk
+                IoCounters.copied(largeFiles.copy(file, targetFile, attrs, updateOnly));
+                control.progress(0, 1);
+            } else {
+                if (updateOnly) {
+                    Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                } else {
+                    Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                IoCounters.copied(attrs.size());
+                control.progress(attrs.size(), 1);
+            }
+            files.increment();
+            bytes.add(attrs.size());
+            if (verify) {
+                if (HashEngine.sameContent(file, targetFile)) {
+                    verified.increment();
+                } else {
+                    errors.add(file + ": verification failed, the copy differs from the source");
+                }
+            }
+        } catch (IOException e) {
+            errors.add(file + ": " + FileErrors.describe(e));
+        }
+    }
+
+    // Removes the entries of targetDir that have no counterpart in sourceDir
+    private void deleteExtraneous(Path sourceDir, Path targetDir) throws IOException {
+        Set<Path> names = new HashSet<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(sourceDir)) {
+            for (Path child : children) {
+                names.add(child.getFileName());
+            }
+        }
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(targetDir)) {
+            for (Path child : children) {
+                if (!names.contains(child.getFileName())) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+    }
+
+    private void deleteRecursively(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                deleted.increment();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                deleted.increment();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Wait for the queued copies to finish
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting, big files can take a while
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        endTime = System.nanoTime();
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public String summary() {
+        double seconds = Math.max(endTime - startTime, 1) / 1_000_000_000.0;
+        long fileCount = files.sum();
+        long byteCount = bytes.sum();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Copied %d files, %d directories, %.1f MB in %.2f s (%.0f files/s, %.1f MB/s)",
+                fileCount, directories.sum(), byteCount / 1e6, seconds, fileCount / seconds, byteCount / 1e6 / seconds));
+        if (updateOnly) {
+            sb.append("\nSkipped ").append(skipped.sum()).append(" unchanged files");
+        }
+        if (deleteExtraneous) {
+            sb.append("\nDeleted ").append(deleted.sum()).append(" extraneous entries");
+        }
+        if (verify) {
+            sb.append("\nVerified ").append(verified.sum()).append(" copies");
+        }
+
+        FileErrors.appendSummary(sb, getErrors());
+        return sb.toString();
+    }
+}
+
+
+// Copy path for large files behind "cp" (LARGE_FILE bytes and more).
+// The file is cut in CHUNK_SIZE ranges that the workers take in turn, each worker with its
+// own source and destination channel, so one huge file uses several I/O streams. Without
+// --sparse a range is one transferTo (copy_file_range/sendfile, no copy through the heap).
+// The workers come from one pool per copier, so the large files of a cp -r never copy more
+// than "jobs" ranges at once between them.
+// With --resume a journal next to the destination (<name>.cpjournal) marks the ranges that
+// are on disk (each one is forced first), and the next cp --resume skips them after an
+// interrupted copy; it is removed once the copy is complete. A plain copy has no journal and
+// forces nothing.
+// With --sparse, blocks of zeros are not written and stay holes in the destination.
+class LargeFileCopier {
+    static final long LARGE_FILE = 256L << 20;
+    static final int CHUNK_SIZE = 64 << 20;
+    private static final int SPARSE_BLOCK = 1 << 20;
+    private static final String JOURNAL_SUFFIX = ".cpjournal";
+    private static final int JOURNAL_MAGIC = 0x43504a31;    // "CPJ1"
+    private static final int JOURNAL_HEADER = 24;           // magic, chunk size, file size, mtime
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(SPARSE_BLOCK).asReadOnlyBuffer();
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SPARSE_BLOCK));
+
+    private final int jobs;
+    private final ThreadPoolExecutor ranges;
+    private boolean resume = false;
+    private boolean sparse = false;
+    private JobControl control = JobControl.NONE;
+
+    LargeFileCopier(int jobs) {
+        this.jobs = jobs;
+        // Threads are started on the first large file and go away once the pool is idle
+        this.ranges = new ThreadPoolExecutor(jobs, jobs, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "cp-range");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ranges.allowCoreThreadTimeOut(true);
+    }
+
+    // Continue from the journal of an interrupted copy instead of starting over
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    // Do not write the blocks that are all zeros
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    public void setControl(JobControl control) {
+        this.control = control;
+    }
+
+    // With --resume, a destination that still has a journal is finished by this copier
+    // whatever its size
+    boolean hasJournal(Path destination) {
+        return resume && Files.exists(journalFor(destination));
+    }
+
+    // True when the destination exists and is the source itself (same name, hard link or
+    // symlink): copy() starts by truncating the destination, that would destroy the source
+    static boolean isSameFile(Path source, Path destination) throws IOException {
+        return Files.exists(destination) && Files.isSameFile(source, destination);
+    }
+
+    static Path journalFor(Path destination) {
+        return destination.resolveSibling(destination.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    // Returns the bytes copied by this call (ranges done by an earlier, interrupted copy excluded).
+    // keepTime gives the destination the time of the source, like COPY_ATTRIBUTES does for cp -u.
+    long copy(Path source, Path destination, BasicFileAttributes attrs, boolean keepTime) throws IOException {
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        Path journalPath = journalFor(destination);
+
+        boolean[] done = resume ? readJournal(journalPath, destination, size, modified, chunks) : null;
+        boolean fresh = (done == null);
+        if (fresh) {
+            done = new boolean[chunks];
+        }
+        if (!resume) {
+            // The ranges of an older --resume copy are about to be overwritten
+            Files.deleteIfExists(journalPath);
+        }
+        // The destination gets its final size first (a sparse file), the workers fill it in
+        try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+            if (fresh) {
+                file.setLength(0);
+            }
+            file.setLength(size);
+        }
+
+        long copied;
+        if (resume) {
+            try (FileChannel journal = openJournal(journalPath, fresh, size, modified, chunks)) {
+                copied = copyChunks(source, destination, journal, done, size);
+            }
+            Files.delete(journalPath);
+        } else {
+            copied = copyChunks(source, destination, null, done, size);
+        }
+        if (keepTime) {
+            Files.setLastModifiedTime(destination, attrs.lastModifiedTime());
+        }
+        return copied;
+    }
+
+    // journal is null without --resume
+    private long copyChunks(Path source, Path destination, FileChannel journal, boolean[] done, long size) throws IOException {
+        AtomicInteger next = new AtomicInteger();
+        int threads = Math.max(1, Math.min(jobs, done.length));
+        List<Future<Long>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(ranges.submit(() -> copyWorker(source, destination, journal, done, size, next)));
+            }
+            long copied = 0;
+            IOException failure = null;
+            for (Future<Long> result : results) {
+                try {
+                    copied += result.get();
+                } catch (ExecutionException e) {
+                    // the first error stops the other workers after their current range
+                    next.set(done.length);
+                    if (failure == null) {
+                        failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+                                : new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return copied;
+        } catch (InterruptedException e) {
+            // the workers stop after their current range
+            next.set(done.length);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    private long copyWorker(Path source, Path destination, FileChannel journal, boolean[] done, long size,
+                            AtomicInteger next) throws IOException {
+        long copied = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+            IoCounters.file();
+            int chunk;
+            while ((chunk = next.getAndIncrement()) < done.length) {
+                if (done[chunk]) {
+                    continue;
+                }
+                control.checkCancelled();
+                long start = (long) chunk * CHUNK_SIZE;
+                long length = Math.min(CHUNK_SIZE, size - start);
+                if (sparse) {
+                    copySparse(in, out, start, length);
+                } else {
+                    transfer(in, out, start, length);
+                }
+                if (journal != null) {
+                    // The range must be on disk before the journal says so
+                    out.force(false);
+                    journal.write(ByteBuffer.wrap(new byte[] {1}), JOURNAL_HEADER + chunk);
+                }
+                copied += length;
+                control.progress(length, 0);
+            }
+        }
+        return copied;
+    }
+
+    private static void transfer(FileChannel in, FileChannel out, long start, long length) throws IOException {
+        out.position(start);
+        long done = 0;
+        while (done < length) {
+            long n = in.transferTo(start + done, length - done, out);
+            if (n <= 0) {
+                throw new EOFException("source got shorter while it was copied");
+            }
+            done += n;
+        }
+    }
+
+    // Blocks of zeros are skipped: the destination was extended with setLength, they read back as zeros
+    private static void copySparse(FileChannel in, FileChannel out, long start, long length) throws IOException {
+        ByteBuffer buffer = BUFFERS.get();
+        long end = start + length;
+        for (long at = start; at < end; at += SPARSE_BLOCK) {
+            buffer.clear().limit((int) Math.min(SPARSE_BLOCK, end - at));
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, at + buffer.position()) < 0) {
+                    throw new EOFException("source got shorter while it was copied");
+                }
+            }
+            buffer.flip();
+            if (buffer.mismatch(ZEROS.duplicate().limit(buffer.remaining())) == -1) {
+                continue;
+            }
+            long position = at;
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+
+    // The ranges already copied, or null when there is nothing to resume (no journal, or one
+    // written for another version of the source)
+    private static boolean[] readJournal(Path journalPath, Path destination, long size, long modified, int chunks) throws IOException {
+        if (!Files.exists(journalPath) || !Files.exists(destination)) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(JOURNAL_HEADER + chunks);
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) > 0) {
+                // read the whole journal
+            }
+        }
+        if (data.hasRemaining() || data.getInt(0) != JOURNAL_MAGIC || data.getInt(4) != CHUNK_SIZE
+                || data.getLong(8) != size || data.getLong(16) != modified) {
+            return null;
+        }
+        boolean[] done = new boolean[chunks];
+        for (int i = 0; i < chunks; i++) {
+            done[i] = data.get(JOURNAL_HEADER + i) != 0;
+        }
+        return done;
+    }
+
+    private static FileChannel openJournal(Path journalPath, boolean fresh, long size, long modified, int chunks) throws IOException {
+        if (!fresh) {
+            return FileChannel.open(journalPath, StandardOpenOption.WRITE);
+        }
+        FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER + chunks);
+        header.putInt(JOURNAL_MAGIC).putInt(CHUNK_SIZE).putLong(size).putLong(modified).rewind();
+        while (header.hasRemaining()) {
+            journal.write(header);
+        }
+        return journal;
+    }
+}
+
+
+// Delete engine behind "rm -r".
+// Every directory is a ForkJoin task: it lists its children (with their attributes, no
+// extra stat), deletes its files in batches that other workers can steal, forks one task
+// per subdirectory and removes the directory itself once all of them are done, so the
+// tree goes away bottom-up. A directory whose subtree had an error is left in place;
+// only the first error is reported, not the "directory not empty" that follows from it.
+// While the delete runs a progress line is written to the error stream every second.
+class DeleteEngine {
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+
+    // Files deleted by one task, bigger directories are split into several batches
+    private static final int BATCH_SIZE = 256;
+
+    private final ForkJoinPool pool;
+    private final PrintStream progress;
+    private JobControl control = JobControl.NONE;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private long endTime;
+
+    DeleteEngine(int jobs, PrintStream progress) {
+        this.pool = new ForkJoinPool(jobs);
+        this.progress = progress;
+    }
+
+    // Progress goes to the job, and the delete stops once the job is killed
+    public void setControl(JobControl control) {
+        this.control = control;
+    }
+
+    public void deleteTree(Path root) throws IOException {
+        ForkJoinTask<?> task = pool.submit(new DirectoryTask(root));
+        while (true) {
+            try {
+                task.get(1, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (progress != null) {
+                    progress.println("rm: removed " + files.sum() + " files, " + directories.sum() + " directories so far...");
+                    progress.flush();
+                }
+            } catch (InterruptedException e) {
+                if (control.isCancelled()) {
+                    continue;       // killed: the tasks see the flag and finish quickly
+                }
+                task.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("rm interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    private class DirectoryTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        DirectoryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        // true when the whole subtree (and the directory) is gone
+        @Override
+        protected Boolean compute() {
+            if (control.isCancelled()) {
+                return false;
+            }
+            List<Path> batch = new ArrayList<>();
+            List<RecursiveTask<Boolean>> subtasks = new ArrayList<>();
+            try {
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path child, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            subtasks.add(new DirectoryTask(child));
+                        } else {
+                            batch.add(child);
+                            if (batch.size() == BATCH_SIZE) {
+                                subtasks.add(new FileBatch(new ArrayList<>(batch)));
+                                batch.clear();
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path child, IOException e) {
+                        errors.add(child + ": " + FileErrors.describe(e));
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                errors.add(dir + ": " + FileErrors.describe(e));
+                return false;
+            }
+
+            boolean complete = true;
+            if (!subtasks.isEmpty()) {
+                invokeAll(subtasks);
+            }
+            // The last (partial) batch is deleted by this task
+            if (!batch.isEmpty()) {
+                complete = deleteFiles(batch);
+            }
+            for (RecursiveTask<Boolean> subtask : subtasks) {
+                complete &= subtask.join();
+            }
+            if (!complete) {
+                return false;
+            }
+
+            try {
+                Files.delete(dir);
+                directories.increment();
+                return true;
+            } catch (IOException e) {
+                errors.add(dir + ": " + FileErrors.describe(e));
+                return false;
+            }
+        }
+    }
+
+    private class FileBatch extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> batch;
+
+        FileBatch(List<Path> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        protected Boolean compute() {
+            return deleteFiles(batch);
+        }
+    }
+
+    private boolean deleteFiles(List<Path> batch) {
+        boolean complete = true;
+        for (Path file : batch) {
+            if (control.isCancelled()) {
+                return false;
+            }
+            try {
+                Files.delete(file);
+                files.increment();
+                IoCounters.file();
+                control.progress(0, 1);
+            } catch (NoSuchFileException e) {
+                // already gone, fine for rm
+            } catch (IOException e) {
+                errors.add(file + ": " + FileErrors.describe(e));
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        endTime = System.nanoTime();
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public String summary() {
+        double seconds = Math.max(endTime - startTime, 1) / 1_000_000_000.0;
+        long entries = files.sum() + directories.sum();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Removed %d files, %d directories in %.2f s (%.0f entries/s)",
+                files.sum(), directories.sum(), seconds, entries / seconds));
+
+        FileErrors.appendSummary(sb, getErrors());
+        return sb.toString();
+    }
+}
+
+
+// Parallel (pigz style) ZIP writer behind "zip".
+// Every entry is cut into 1 MiB blocks. Each block is deflated on its own by a worker,
+// using the last 32 KiB of the previous block as dictionary and ending with a sync flush,
+// so the compressed blocks can simply be written one after the other and still form one
+// valid deflate stream. The CRC is computed by the reading thread while the blocks are
+// read. The writer keeps a bounded window of blocks in flight and writes them in order,
+// then patches the CRC and sizes into the local header and writes the central directory
+// (with ZIP64 records when needed) when it is closed.
+// addRaw copies an entry of another archive as it is: its compressed bytes are transferred
+// channel to channel (no inflate, no deflate), only the headers are written again.
+class ParallelZipWriter implements Closeable {
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    // Entries at least this big get a ZIP64 local header, their compressed size could pass 4 GB
+    private static final long ZIP64_LOCAL_THRESHOLD = 0xFFFF0000L;
+
+    static class Entry {
+        final String name;
+        final byte[] nameBytes;
+        final int dosTime;
+        final int dosDate;
+        final boolean zip64Local;
+        int method = ZipEntry.DEFLATED;
+        int flags = 0x0800;             // names are UTF-8
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+
+        Entry(String name, long lastModified, long expectedSize) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.dosDate = dosDate(lastModified);
+            this.dosTime = dosTime(lastModified);
+            this.zip64Local = expectedSize >= ZIP64_LOCAL_THRESHOLD;
+        }
+
+        // An entry copied from another archive, headers as they were there
+        Entry(ZipDirectory.RawEntry raw) {
+            this.name = raw.name;
+            this.nameBytes = raw.nameBytes;
+            this.dosTime = raw.dosTime;
+            this.dosDate = raw.dosDate;
+            this.zip64Local = raw.size >= ZIP64_LOCAL_THRESHOLD || raw.compressedSize >= ZIP64_LOCAL_THRESHOLD;
+            this.method = raw.method;
+            this.flags = raw.flags & ~0x0008;   // sizes are in the header, no data descriptor
+            this.crc = raw.crc;
+            this.size = raw.size;
+        }
+    }
+
+    static int dosDate(long lastModified) {
+        LocalDateTime time = dosLocalTime(lastModified);
+        return ((time.getYear() - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth();
+    }
+
+    static int dosTime(long lastModified) {
+        LocalDateTime time = dosLocalTime(lastModified);
+        return (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1);
+    }
+
+    private static LocalDateTime dosLocalTime(long lastModified) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneId.systemDefault());
+        return (time.getYear() < 1980) ? LocalDateTime.of(1980, 1, 1, 0, 0) : time;
+    }
+
+    // One step for the writer: start an entry, write one compressed block, finish an entry,
+    // or copy a whole raw entry
+    private static class Pending {
+        final Entry entry;
+        final Future<byte[]> block;
+        final boolean end;
+        FileChannel rawSource;
+        long rawOffset;
+
+        Pending(Entry entry, Future<byte[]> block, boolean end) {
+            this.entry = entry;
+            this.block = block;
+            this.end = end;
+        }
+    }
+
+    private final FileChannel out;
+    private final ExecutorService workers;
+    private final int window;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private long position = 0;
+    private JobControl control = JobControl.NONE;
+
+    ParallelZipWriter(Path archive, int jobs) throws IOException {
+        this(archive, jobs, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    ParallelZipWriter(Path archive, int jobs, int level) throws IOException {
+        this.out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.workers = Executors.newFixedThreadPool(jobs);
+        this.window = jobs * 4;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public void addFile(Path file, String name) throws IOException {
+        // Zip entry names always use '/'
+        name = name.replace(File.separatorChar, '/');
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        Entry entry = new Entry(name, attrs.lastModifiedTime().toMillis(), attrs.size());
+        enqueue(new Pending(entry, null, false));
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            IoCounters.file();
+            byte[] previous = null;
+            boolean last = false;
+            while (!last) {
+                control.checkCancelled();
+                // The end of the file gets a block of its size (one byte more to see the end), a
+                // small file does not cost a whole BLOCK_SIZE. A file that grows gets full blocks.
+                long left = attrs.size() - size;
+                byte[] block = new byte[(left >= 0 && left < BLOCK_SIZE) ? (int) left + 1 : BLOCK_SIZE];
+                int length = readBlock(in, block);
+                last = length < block.length;
+                crc.update(block, 0, length);
+                size += length;
+                IoCounters.read(length);
+                control.progress(length, 0);
+
+                byte[] dictionary = previous;
+                boolean finish = last;
+                Future<byte[]> compressed = workers.submit(() -> deflate(block, length, dictionary, finish));
+                enqueue(new Pending(entry, compressed, false));
+                previous = block;
+            }
+        }
+
+        entry.crc = crc.getValue();
+        entry.size = size;
+        control.progress(0, 1);
+        enqueue(new Pending(entry, null, true));
+    }
+
+    // Copies an entry of another archive without recompressing it. The source channel must
+    // stay open until this writer is closed (the copy happens when the writer gets to it).
+    public void addRaw(ZipDirectory.RawEntry raw, FileChannel source) throws IOException {
+        if (!names.add(raw.name)) {
+            throw new ZipException("duplicate entry: " + raw.name);
+        }
+        control.checkCancelled();
+        Pending step = new Pending(new Entry(raw), null, false);
+        step.rawSource = source;
+        step.rawOffset = raw.dataOffset(source);
+        step.entry.compressedSize = raw.compressedSize;
+        enqueue(step);
+        control.progress(raw.compressedSize, 1);
+    }
+
+    private static int readBlock(FileChannel in, byte[] block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        while (buffer.hasRemaining() && in.read(buffer) != -1) {
+            // keep reading until the block is full or the file ends
+        }
+        return buffer.position();
+    }
+
+    // The previous block is the dictionary, or its last DICTIONARY_SIZE bytes. Each worker keeps
+    // its Deflater, reset between blocks.
+    private byte[] deflate(byte[] block, int length, byte[] dictionary, boolean finish) {
+        Deflater deflater = deflaters.get();
+        try {
+            if (dictionary != null) {
+                int dictionaryLength = Math.min(dictionary.length, DICTIONARY_SIZE);
+                deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(block, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.min(Terminal.CHUNK_SIZE, length + 64)];
+            if (finish) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    result.write(buffer, 0, n);
+                }
+            } else {
+                // The sync flush ends the block on a byte boundary so the next block can follow it
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private void enqueue(Pending step) throws IOException {
+        pending.add(step);
+        while (pending.size() > window) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Pending step = pending.poll();
+        Entry entry = step.entry;
+        if (step.block != null) {
+            byte[] data;
+            try {
+                data = step.block.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while compressing " + entry.name);
+            } catch (ExecutionException e) {
+                throw new IOException("cannot compress " + entry.name + ": " + e.getCause().getMessage(), e.getCause());
+            }
+            write(ByteBuffer.wrap(data));
+            entry.compressedSize += data.length;
+        } else if (step.rawSource != null) {
+            entry.offset = position;
+            write(localHeader(entry));
+            long done = 0;
+            while (done < entry.compressedSize) {
+                long n = step.rawSource.transferTo(step.rawOffset + done, entry.compressedSize - done, out.position(position));
+                if (n <= 0) {
+                    throw new IOException(entry.name + ": archive ends inside the entry");
+                }
+                done += n;
+                position += n;
+            }
+            IoCounters.read(done);
+            IoCounters.written(done);
+            finishEntry(entry);
+        } else if (!step.end) {
+            entry.offset = position;
+            write(localHeader(entry));
+        } else {
+            finishEntry(entry);
+        }
+    }
+
+    private ByteBuffer localHeader(Entry entry) {
+        int extraLength = entry.zip64Local ? 20 : 0;
+        ByteBuffer header = ByteBuffer.allocate(30 + entry.nameBytes.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x04034b50);
+        header.putShort((short) (entry.zip64Local ? 45 : 20));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.dosTime);
+        header.putShort((short) entry.dosDate);
+        header.putInt(0);                               // CRC and sizes are patched in finishEntry
+        header.putInt(entry.zip64Local ? -1 : 0);
+        header.putInt(entry.zip64Local ? -1 : 0);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) extraLength);
+        header.put(entry.nameBytes);
+        if (entry.zip64Local) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(0);
+            header.putLong(0);
+        }
+        return header.flip();
+    }
+
+    private void finishEntry(Entry entry) throws IOException {
+        if (!entry.zip64Local && (entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT)) {
+            throw new IOException(entry.name + " grew past 4 GB while it was being compressed");
+        }
+        ByteBuffer fields = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        fields.putInt((int) entry.crc);
+        if (entry.zip64Local) {
+            fields.putInt(-1).putInt(-1).flip();
+            writeAt(fields, entry.offset + 14);
+            ByteBuffer sizes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            sizes.putLong(entry.size).putLong(entry.compressedSize).flip();
+            writeAt(sizes, entry.offset + 30 + entry.nameBytes.length + 4);
+        } else {
+            fields.putInt((int) entry.compressedSize).putInt((int) entry.size).flip();
+            writeAt(fields, entry.offset + 14);
+        }
+        entries.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long directoryStart = position;
+        for (Entry entry : entries) {
+            boolean bigSize = entry.size >= ZIP64_LIMIT;
+            boolean bigCompressed = entry.compressedSize >= ZIP64_LIMIT;
+            boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (bigSize || bigCompressed || bigOffset)
+                    ? 4 + (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0) : 0;
+            boolean zip64 = extraLength > 0 || entry.zip64Local;
+
+            ByteBuffer header = ByteBuffer.allocate(46 + entry.nameBytes.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x02014b50);
+            header.putShort((short) (zip64 ? 45 : 20));     // version made by
+            header.putShort((short) (zip64 ? 45 : 20));     // version needed
+            header.putShort((short) entry.flags);
+            header.putShort((short) entry.method);
+            header.putShort((short) entry.dosTime);
+            header.putShort((short) entry.dosDate);
+            header.putInt((int) entry.crc);
+            header.putInt(bigCompressed ? -1 : (int) entry.compressedSize);
+            header.putInt(bigSize ? -1 : (int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0);                     // comment length
+            header.putShort((short) 0);                     // disk number
+            header.putShort((short) 0);                     // internal attributes
+            header.putInt(0);                               // external attributes
+            header.putInt(bigOffset ? -1 : (int) entry.offset);
+            header.put(entry.nameBytes);
+            if (extraLength > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) (extraLength - 4));
+                if (bigSize) header.putLong(entry.size);
+                if (bigCompressed) header.putLong(entry.compressedSize);
+                if (bigOffset) header.putLong(entry.offset);
+            }
+            write(header.flip());
+        }
+        long directorySize = position - directoryStart;
+
+        boolean zip64 = entries.size() >= 0xFFFF || directoryStart >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT;
+        if (zip64) {
+            long zip64RecordStart = position;
+            ByteBuffer record = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+            record.putInt(0x06064b50);
+            record.putLong(44);                             // size of the rest of the record
+            record.putShort((short) 45);
+            record.putShort((short) 45);
+            record.putInt(0);
+            record.putInt(0);
+            record.putLong(entries.size());
+            record.putLong(entries.size());
+            record.putLong(directorySize);
+            record.putLong(directoryStart);
+            // ZIP64 end of central directory locator
+            record.putInt(0x07064b50);
+            record.putInt(0);
+            record.putLong(zip64RecordStart);
+            record.putInt(1);
+            write(record.flip());
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(entries.size(), 0xFFFF));
+        end.putShort((short) Math.min(entries.size(), 0xFFFF));
+        end.putInt(directorySize >= ZIP64_LIMIT ? -1 : (int) directorySize);
+        end.putInt(directoryStart >= ZIP64_LIMIT ? -1 : (int) directoryStart);
+        end.putShort((short) 0);
+        write(end.flip());
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            int n = out.write(data, position);
+            position += n;
+            IoCounters.written(n);
+        }
+    }
+
+    // Progress goes to the job, and addFile stops once the job is killed
+    public void setControl(JobControl control) {
+        this.control = control;
+    }
+
+    private void writeAt(ByteBuffer data, long at) throws IOException {
+        while (data.hasRemaining()) {
+            at += out.write(data, at);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            writeCentralDirectory();
+            out.truncate(position);
+        } finally {
+            workers.shutdownNow();
+            out.close();
+        }
+    }
+}
+
+
+// Reads the central directory of an existing archive (ZIP64 included), for "zip -u".
+// java.util.zip.ZipFile hides where an entry's bytes are, this keeps the local header offset
+// so ParallelZipWriter.addRaw can copy the compressed data as it is.
+class ZipDirectory {
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    static class RawEntry {
+        String name;
+        byte[] nameBytes;
+        int flags;
+        int method;
+        int dosTime;
+        int dosDate;
+        long crc;
+        long compressedSize;
+        long size;
+        long localOffset;
+
+        // Where the compressed bytes start: after the local header, whose extra field can
+        // differ from the one in the central directory
+        long dataOffset(FileChannel channel) throws IOException {
+            ByteBuffer header = readFully(channel, localOffset, 30);
+            if (header.getInt(0) != 0x04034b50) {
+                throw new ZipException(name + ": bad local header");
+            }
+            return localOffset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        }
+
+        // DOS time of the entry as milliseconds, in the local time zone (2 second precision)
+        long lastModified() {
+            int year = ((dosDate >> 9) & 0x7F) + 1980;
+            int month = Math.max((dosDate >> 5) & 0x0F, 1);
+            int day = Math.max(dosDate & 0x1F, 1);
+            LocalDateTime time = LocalDateTime.of(year, month, day, (dosTime >> 11) & 0x1F, (dosTime >> 5) & 0x3F, (dosTime & 0x1F) * 2);
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    static List<RawEntry> read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        // The end record is in the last 22 bytes, plus a comment of up to 64 KB
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == 0x06054b50) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("not a zip archive (no end of central directory)");
+        }
+
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryStart = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+        // ZIP64: the locator sits right before the end record and points to the real values
+        long endPosition = fileSize - tailSize + end;
+        if (endPosition >= 20) {
+            ByteBuffer locator = readFully(channel, endPosition - 20, 20);
+            if (locator.getInt(0) == 0x07064b50) {
+                ByteBuffer record = readFully(channel, locator.getLong(8), 56);
+                if (record.getInt(0) != 0x06064b50) {
+                    throw new ZipException("bad ZIP64 end of central directory");
+                }
+                count = record.getLong(32);
+                directorySize = record.getLong(40);
+                directoryStart = record.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("central directory too big");
+        }
+
+        ByteBuffer directory = readFully(channel, directoryStart, (int) directorySize);
+        List<RawEntry> entries = new ArrayList<>((int) Math.min(count, 1 << 20));
+        int at = 0;
+        for (long n = 0; n < count; n++) {
+            if (at + 46 > directory.limit() || directory.getInt(at) != 0x02014b50) {
+                throw new ZipException("bad central directory entry " + n);
+            }
+            RawEntry entry = new RawEntry();
+            entry.flags = directory.getShort(at + 8) & 0xFFFF;
+            entry.method = directory.getShort(at + 10) & 0xFFFF;
+            entry.dosTime = directory.getShort(at + 12) & 0xFFFF;
+            entry.dosDate = directory.getShort(at + 14) & 0xFFFF;
+            entry.crc = directory.getInt(at + 16) & 0xFFFFFFFFL;
+            entry.compressedSize = directory.getInt(at + 20) & 0xFFFFFFFFL;
+            entry.size = directory.getInt(at + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(at + 28) & 0xFFFF;
+            int extraLength = directory.getShort(at + 30) & 0xFFFF;
+            int commentLength = directory.getShort(at + 32) & 0xFFFF;
+            entry.localOffset = directory.getInt(at + 42) & 0xFFFFFFFFL;
+
+            entry.nameBytes = new byte[nameLength];
+            directory.get(at + 46, entry.nameBytes);
+            entry.name = new String(entry.nameBytes, StandardCharsets.UTF_8);
+            readZip64Extra(directory, at + 46 + nameLength, extraLength, entry);
+
+            at += 46 + nameLength + extraLength + commentLength;
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    // Values that did not fit in 32 bits are 0xFFFFFFFF and come, in this order, from extra 0x0001
+    private static void readZip64Extra(ByteBuffer directory, int start, int length, RawEntry entry) {
+        int at = start;
+        while (at + 4 <= start + length) {
+            int id = directory.getShort(at) & 0xFFFF;
+            int size = directory.getShort(at + 2) & 0xFFFF;
+            if (id == 0x0001) {
+                int field = at + 4;
+                if (entry.size == 0xFFFFFFFFL) {
+                    entry.size = directory.getLong(field);
+                    field += 8;
+                }
+                if (entry.compressedSize == 0xFFFFFFFFL) {
+                    entry.compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (entry.localOffset == 0xFFFFFFFFL) {
+                    entry.localOffset = directory.getLong(field);
+                }
+                return;
+            }
+            at += 4 + size;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("archive is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+}
+
+
+// Bounded in-memory pipe between two stages of a pipeline.
+// The writer blocks while the buffer is full and the reader blocks while it is empty,
+// so a pipeline never holds more than the capacity of its pipes, whatever flows through.
+// Closing the writing end is the end of the data for the reader, closing the reading
+// end makes the writer fail with BrokenPipeException so it can stop early.
+class Pipe {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    static class BrokenPipeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        BrokenPipeException() {
+            super("Broken pipe");
+        }
+    }
+
+    private final byte[] buffer;
+    private int readIndex = 0;
+    private int count = 0;
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+
+    Pipe(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    public OutputStream sink() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                Pipe.this.write(data, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+    }
+
+    public InputStream source() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) == -1) ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] data, int offset, int length) throws IOException {
+                return Pipe.this.read(data, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+    }
+
+    private synchronized void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            while (count == buffer.length && !readerClosed) {
+                waitForOtherSide();
+            }
+            if (readerClosed) {
+                throw new BrokenPipeException();
+            }
+            // Copy as much as fits, in at most two pieces because the buffer wraps around
+            int writeIndex = (readIndex + count) % buffer.length;
+            int n = Math.min(length, Math.min(buffer.length - count, buffer.length - writeIndex));
+            System.arraycopy(data, offset, buffer, writeIndex, n);
+            count += n;
+            offset += n;
+            length -= n;
+            notifyAll();
+        }
+    }
+
+    private synchronized int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (count == 0 && !writerClosed) {
+            waitForOtherSide();
+        }
+        if (count == 0) {
+            return -1;
+        }
+        int n = Math.min(length, Math.min(count, buffer.length - readIndex));
+        System.arraycopy(buffer, readIndex, data, offset, n);
+        readIndex = (readIndex + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    private void waitForOtherSide() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("pipe interrupted");
+        }
+    }
+
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeReader() {
+        readerClosed = true;
+        notifyAll();
+    }
+}
+
+
+// Where a command writes its output: the terminal, a redirect file or the next pipeline stage.
+// Everything goes through one buffer into a WritableByteChannel, so commands can stream their
+// output line by line (or chunk by chunk) instead of building one big String.
+class OutputSink implements Closeable, Flushable {
+    private final WritableByteChannel channel;
+    private final boolean closeChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Terminal.CHUNK_SIZE);
+
+    OutputSink(WritableByteChannel channel, boolean closeChannel) {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+    }
+
+    // The process stdout. Whatever System.out still holds is flushed first to keep the order.
+    public static OutputSink stdout() {
+        System.out.flush();
+        return new OutputSink(Terminal.STDOUT, false);
+    }
+
+    // ">" (append = false) or ">>" (append = true)
+    public static OutputSink toFile(Path file, boolean append) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        return new OutputSink(channel, true);
+    }
+
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) b);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    public void write(ByteBuffer data) throws IOException {
+        // Big chunks skip the buffer
+        if (data.remaining() > buffer.remaining()) {
+            flush();
+            if (data.remaining() >= buffer.capacity()) {
+                writeFully(data);
+                return;
+            }
+        }
+        buffer.put(data);
+    }
+
+    public void print(String text) throws IOException {
+        write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void println(String line) throws IOException {
+        print(line);
+        write('\n');
+    }
+
+    // Copies a region of a file into the sink, zero-copy when the sink is itself a file or stdout
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        flush();
+        long end = position + count;
+        while (position < end) {
+            long n = source.transferTo(position, end - position, channel);
+            if (n <= 0 && position >= source.size()) {
+                break;      // the file got shorter while we were copying it
+            }
+            IoCounters.read(n);
+            IoCounters.written(n);
+            position += n;
+        }
+    }
+
+    // For APIs that want an OutputStream
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                OutputSink.this.write(b);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                OutputSink.this.write(data, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                OutputSink.this.flush();
+            }
+        };
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            IoCounters.written(channel.write(data));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+    }
+}
+
+
+// "ls -l" output. Names are collected in batches, the attributes of a batch are read with a
+// single readAttributes call per entry (POSIX when the file system has it), on a small pool
+// when --jobs is given, then the lines are written in the original order.
+class LongListing {
+    private static final int BATCH_SIZE = 1024;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private final Path dir;
+    private final OutputSink out;
+    private final ForkJoinPool pool;
+    private final boolean posix;
+    private final List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+    LongListing(Path dir, OutputSink out, int jobs) {
+        this.dir = dir;
+        this.out = out;
+        this.pool = (jobs > 1) ? new ForkJoinPool(jobs) : null;
+        this.posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    public void add(String name) throws IOException {
+        batch.add(name);
+        if (batch.size() == BATCH_SIZE) {
+            writeBatch();
+        }
+    }
+
+    public void finish() throws IOException {
+        try {
+            writeBatch();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        List<String> lines;
+        if (pool != null) {
+            try {
+                lines = pool.submit(() -> batch.parallelStream().map(this::format).collect(Collectors.toList())).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("ls interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        } else {
+            lines = new ArrayList<>(batch.size());
+            for (String name : batch) {
+                lines.add(format(name));
+            }
+        }
+        for (String line : lines) {
+            out.println(line);
+        }
+        batch.clear();
+    }
+
+    private String format(String name) {
+        Path entry = dir.resolve(name);
+        try {
+            String permissions, owner, group;
+            BasicFileAttributes attrs;
+            if (posix) {
+                PosixFileAttributes posixAttrs = Files.readAttributes(entry, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                permissions = PosixFilePermissions.toString(posixAttrs.permissions());
+                owner = posixAttrs.owner().getName();
+                group = posixAttrs.group().getName();
+                attrs = posixAttrs;
+            } else {
+                attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                permissions = "---------";
+                owner = "-";
+                group = "-";
+            }
+            char type = attrs.isDirectory() ? 'd' : attrs.isSymbolicLink() ? 'l' : attrs.isRegularFile() ? '-' : '?';
+            String date = LocalDateTime.ofInstant(attrs.lastModifiedTime().toInstant(), ZoneId.systemDefault()).format(DATE_FORMAT);
+            return String.format("%c%s %-8s %-8s %12d %s %s", type, permissions, owner, group, attrs.size(), date, name);
+        } catch (IOException e) {
+            // The entry went away (or cannot be read) between the listing and now
+            return String.format("?????????? %-8s %-8s %12s %16s %s", "?", "?", "?", "?", name);
+        }
+    }
+}
+
+
+// Sorts more records than fit in memory.
+// Records are kept in memory until the limit (a count, or an estimate of their bytes) is
+// reached, then that run is sorted (in parallel on the common pool when it is big) and
+// spilled to a temp file. At the end the runs are merged with a heap (k-way merge), so
+// memory holds one run plus one record per spilled run. Records are written with a
+// length prefix, so they can contain any character, newlines included.
+class ExternalSorter implements Closeable {
+
+    // Heap cost of a record besides its chars: String and array headers, list and sort slots.
+    // Chars are counted as one byte each (Latin-1 strings, what sort reads).
+    private static final long RECORD_OVERHEAD = 64;
+
+    // Below this many records a run is sorted on the calling thread
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 13;
+
+    interface RecordConsumer {
+        void accept(String record) throws IOException;
+    }
+
+    private final Comparator<String> order;
+    private final int maxRecordsInMemory;
+    private final long maxBytesInMemory;
+    private final List<String> records = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private long bytesInMemory = 0;
+
+    ExternalSorter(Comparator<String> order, int maxRecordsInMemory) {
+        this(order, maxRecordsInMemory, Long.MAX_VALUE);
+    }
+
+    ExternalSorter(Comparator<String> order, int maxRecordsInMemory, long maxBytesInMemory) {
+        this.order = order;
+        this.maxRecordsInMemory = maxRecordsInMemory;
+        this.maxBytesInMemory = maxBytesInMemory;
+    }
+
+    public void add(String record) throws IOException {
+        records.add(record);
+        bytesInMemory += RECORD_OVERHEAD + record.length();
+        if (records.size() >= maxRecordsInMemory || bytesInMemory >= maxBytesInMemory) {
+            spill();
+        }
+    }
+
+    private String[] sortedRecords() {
+        String[] sorted = records.toArray(new String[0]);
+        records.clear();
+        bytesInMemory = 0;
+        if (sorted.length < PARALLEL_SORT_THRESHOLD) {
+            Arrays.sort(sorted, order);
+        } else {
+            Arrays.parallelSort(sorted, order);
+        }
+        return sorted;
+    }
+
+    private void spill() throws IOException {
+        String[] sorted = sortedRecords();
+        Path run = Files.createTempFile("cli-sort-", ".run");
+        runs.add(run);
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), Terminal.CHUNK_SIZE))) {
+            for (String record : sorted) {
+                byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+        }
+    }
+
+    public void forEachSorted(RecordConsumer consumer) throws IOException {
+        // Everything fit in memory: no temp file at all
+        if (runs.isEmpty()) {
+            for (String record : sortedRecords()) {
+                consumer.accept(record);
+            }
+            return;
+        }
+
+        if (!records.isEmpty()) {
+            spill();
+        }
+
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            PriorityQueue<RunReader> heap = new PriorityQueue<>((a, b) -> order.compare(a.current, b.current));
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.next()) {
+                    heap.add(reader);
+                }
+            }
+            while (!heap.isEmpty()) {
+                RunReader smallest = heap.poll();
+                consumer.accept(smallest.current);
+                if (smallest.next()) {
+                    heap.add(smallest);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream data;
+        String current;
+
+        RunReader(Path run) throws IOException {
+            data = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), Terminal.CHUNK_SIZE));
+        }
+
+        boolean next() throws IOException {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            data.readFully(bytes);
+            current = new String(bytes, StandardCharsets.UTF_8);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+
+    // Removes the temp files
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        records.clear();
+    }
+}
+
+
+// Line order of "sort": the whole line or the fields of -k (N to M, or N to the end of the
+// line), compared as text or (-n) as decimal numbers. Fields are separated by the -t
+// character, or else by runs of blanks, which are not part of the key. Lines with equal keys
+// are compared as whole lines, and -r reverses everything, like GNU sort.
+// Nothing is allocated per comparison: keys are located and compared in place.
+class LineOrder implements Comparator<String> {
+    private final boolean numeric;
+    private final boolean reverse;
+    private final int firstField;   // from 1, 0 = the whole line
+    private final int lastField;    // included, 0 = to the end of the line
+    private final char separator;   // 0 = blanks
+
+    LineOrder(boolean numeric, boolean reverse, int firstField, int lastField, char separator) {
+        this.numeric = numeric;
+        this.reverse = reverse;
+        this.firstField = firstField;
+        this.lastField = lastField;
+        this.separator = separator;
+    }
+
+    @Override
+    public int compare(String a, String b) {
+        int result = 0;
+        if (firstField > 0 || numeric) {
+            int aStart = keyStart(a), aEnd = keyEnd(a, aStart);
+            int bStart = keyStart(b), bEnd = keyEnd(b, bStart);
+            result = numeric ? compareNumbers(a, aStart, aEnd, b, bStart, bEnd)
+                             : compareText(a, aStart, aEnd, b, bStart, bEnd);
+        }
+        if (result == 0) {
+            result = a.compareTo(b);
+        }
+        return reverse ? -result : result;
+    }
+
+    private int keyStart(String line) {
+        return (firstField > 0) ? fieldStart(line, firstField, 0) : 0;
+    }
+
+    private int keyEnd(String line, int start) {
+        if (lastField == 0) {
+            return line.length();
+        }
+        if (lastField < firstField) {
+            return start;
+        }
+        return fieldEnd(line, fieldStart(line, lastField - firstField + 1, start));
+    }
+
+    // Where the n-th field counted from "from" starts
+    private int fieldStart(String line, int n, int from) {
+        int at = from;
+        int length = line.length();
+        if (separator != 0) {
+            for (int field = 1; field < n; field++) {
+                int next = line.indexOf(separator, at);
+                if (next < 0) {
+                    return length;
+                }
+                at = next + 1;
+            }
+            return at;
+        }
+        at = skipBlanks(line, at);
+        for (int field = 1; field < n && at < length; field++) {
+            while (at < length && !isBlank(line.charAt(at))) {
+                at++;
+            }
+            at = skipBlanks(line, at);
+        }
+        return at;
+    }
+
+    private int fieldEnd(String line, int start) {
+        if (separator != 0) {
+            int next = line.indexOf(separator, start);
+            return (next < 0) ? line.length() : next;
+        }
+        int at = start;
+        while (at < line.length() && !isBlank(line.charAt(at))) {
+            at++;
+        }
+        return at;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int skipBlanks(String line, int at) {
+        while (at < line.length() && isBlank(line.charAt(at))) {
+            at++;
+        }
+        return at;
+    }
+
+    private static int compareText(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            int diff = a.charAt(aStart + i) - b.charAt(bStart + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    // -n: [blanks][-]digits[.digits], compared digit by digit so there is no overflow and no
+    // rounding. What does not start like a number counts as 0.
+    static int compareNumbers(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+        aStart = skipBlanks(a, aStart);
+        bStart = skipBlanks(b, bStart);
+        boolean aNegative = aStart < aEnd && a.charAt(aStart) == '-';
+        boolean bNegative = bStart < bEnd && b.charAt(bStart) == '-';
+        int aInt = skipZeros(a, aNegative ? aStart + 1 : aStart, aEnd);
+        int bInt = skipZeros(b, bNegative ? bStart + 1 : bStart, bEnd);
+        int aIntEnd = digitsEnd(a, aInt, aEnd);
+        int bIntEnd = digitsEnd(b, bInt, bEnd);
+        int aFraction = (aIntEnd < aEnd && a.charAt(aIntEnd) == '.') ? aIntEnd + 1 : aIntEnd;
+        int bFraction = (bIntEnd < bEnd && b.charAt(bIntEnd) == '.') ? bIntEnd + 1 : bIntEnd;
+        int aFractionEnd = digitsEnd(a, aFraction, aEnd);
+        int bFractionEnd = digitsEnd(b, bFraction, bEnd);
+
+        // -0 and -0.00 are zero, not negative
+        aNegative &= aIntEnd > aInt || !allZeros(a, aFraction, aFractionEnd);
+        bNegative &= bIntEnd > bInt || !allZeros(b, bFraction, bFractionEnd);
+        if (aNegative != bNegative) {
+            return aNegative ? -1 : 1;
+        }
+
+        int result = (aIntEnd - aInt) - (bIntEnd - bInt);
+        if (result == 0) {
+            result = compareText(a, aInt, aIntEnd, b, bInt, bIntEnd);
+        }
+        for (int i = 0; result == 0 && (aFraction + i < aFractionEnd || bFraction + i < bFractionEnd); i++) {
+            char aDigit = (aFraction + i < aFractionEnd) ? a.charAt(aFraction + i) : '0';
+            char bDigit = (bFraction + i < bFractionEnd) ? b.charAt(bFraction + i) : '0';
+            result = aDigit - bDigit;
+        }
+        return aNegative ? -result : result;
+    }
+
+    private static int skipZeros(String s, int at, int end) {
+        while (at < end && s.charAt(at) == '0') {
+            at++;
+        }
+        return at;
+    }
+
+    private static int digitsEnd(String s, int at, int end) {
+        while (at < end && s.charAt(at) >= '0' && s.charAt(at) <= '9') {
+            at++;
+        }
+        return at;
+    }
+
+    private static boolean allZeros(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != '0') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+
+// Search engine behind "find".
+// Every directory is a ForkJoin task: it lists its children with Files.walkFileTree limited
+// to depth 1 (so each child comes with its attributes, no extra stat), tests them against the
+// filter, writes the matches right away and forks one task per subdirectory. The pool steals
+// work between threads, so wide and deep trees keep every core busy. Pruned directories and
+// directories at the depth limit are never opened.
+class FindEngine {
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+
+    // How often the output is pushed out while the search goes on
+    private static final long FLUSH_INTERVAL_NANOS = 50_000_000L;
+
+    // The tests of one find command, all of them must pass
+    static class Filter {
+        private final List<PathMatcher> names = new ArrayList<>();
+        private final List<Pattern> regexes = new ArrayList<>();
+        private final List<PathMatcher> pruned = new ArrayList<>();
+        private char type = 0;
+        private long minSize = -1;      // size > minSize
+        private long maxSize = -1;      // size < maxSize
+        private long exactSize = -1;
+        private int mtimeDays = Integer.MIN_VALUE;
+        private int mtimeSign = 0;
+        int maxDepth = Integer.MAX_VALUE;
+
+        void name(String glob, boolean ignoreCase) {
+            names.add(globMatcher(glob, ignoreCase));
+        }
+
+        void regex(String regex) {
+            regexes.add(Pattern.compile(regex));
+        }
+
+        void prune(String glob) {
+            pruned.add(globMatcher(glob, false));
+        }
+
+        void type(String value) {
+            if (!value.equals("f") && !value.equals("d") && !value.equals("l")) {
+                throw new IllegalArgumentException(value);
+            }
+            type = value.charAt(0);
+        }
+
+        void size(String value) {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException(value);
+            }
+            char sign = value.charAt(0);
+            String number = (sign == '+' || sign == '-') ? value.substring(1) : value;
+            if (number.isEmpty()) {
+                throw new IllegalArgumentException(value);
+            }
+            long unit = 1;
+            char last = number.charAt(number.length() - 1);
+            if (!Character.isDigit(last)) {
+                unit = unitSize(last);
+                number = number.substring(0, number.length() - 1);
+            }
+            long bytes = Long.parseLong(number) * unit;
+            if (sign == '+') {
+                minSize = bytes;
+            } else if (sign == '-') {
+                maxSize = bytes;
+            } else {
+                exactSize = bytes;
+            }
+        }
+
+        private static long unitSize(char unit) {
+            switch (unit) {
+                case 'c': return 1;
+                case 'k': return 1024;
+                case 'M': return 1024 * 1024;
+                case 'G': return 1024 * 1024 * 1024;
+                default: throw new IllegalArgumentException(String.valueOf(unit));
+            }
+        }
+
+        void mtime(String value) {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException(value);
+            }
+            char sign = value.charAt(0);
+            mtimeSign = (sign == '+') ? 1 : (sign == '-') ? -1 : 0;
+            mtimeDays = Integer.parseInt(mtimeSign != 0 ? value.substring(1) : value);
+        }
+
+        // A glob on the file name only, compiled once
+        private static PathMatcher globMatcher(String glob, boolean ignoreCase) {
+            if (ignoreCase) {
+                Pattern pattern = Pattern.compile(globToRegex(glob), Pattern.CASE_INSENSITIVE);
+                return path -> pattern.matcher(path.toString()).matches();
+            }
+            return FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            boolean inBrackets = false;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (inBrackets) {
+                    if (c == ']') {
+                        inBrackets = false;
+                        regex.append(']');
+                    } else if (c == '!' && glob.charAt(i - 1) == '[') {
+                        regex.append('^');
+                    } else if (c == '\\' || c == '[' || c == '&') {
+                        regex.append('\\').append(c);
+                    } else {
+                        regex.append(c);
+                    }
+                } else if (c == '*') {
+                    regex.append(".*");
+                } else if (c == '?') {
+                    regex.append('.');
+                } else if (c == '[' && glob.indexOf(']', i + 1) > i + 1) {
+                    inBrackets = true;
+                    regex.append('[');
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+
+        boolean isPruned(Path name) {
+            for (PathMatcher matcher : pruned) {
+                if (matcher.matches(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean matches(Path name, String display, BasicFileAttributes attrs, long now) {
+            if (type == 'f' && !attrs.isRegularFile()) return false;
+            if (type == 'd' && !attrs.isDirectory()) return false;
+            if (type == 'l' && !attrs.isSymbolicLink()) return false;
+            for (PathMatcher matcher : names) {
+                if (!matcher.matches(name)) return false;
+            }
+            for (Pattern regex : regexes) {
+                if (!regex.matcher(display).matches()) return false;
+            }
+            long size = attrs.size();
+            if (minSize >= 0 && size <= minSize) return false;
+            if (maxSize >= 0 && size >= maxSize) return false;
+            if (exactSize >= 0 && size != exactSize) return false;
+            if (mtimeDays != Integer.MIN_VALUE) {
+                long days = (now - attrs.lastModifiedTime().toMillis()) / (24L * 60 * 60 * 1000);
+                if (mtimeSign > 0 && days <= mtimeDays) return false;
+                if (mtimeSign < 0 && days >= mtimeDays) return false;
+                if (mtimeSign == 0 && days != mtimeDays) return false;
+            }
+            return true;
+        }
+    }
+
+    private final Filter filter;
+    private final OutputSink out;
+    private final ForkJoinPool pool;
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final long now = System.currentTimeMillis();
+    private long lastFlush = System.nanoTime();
+    // Set when the reader of the output went away (find ... | head), the search stops
+    private volatile boolean stopped = false;
+
+    FindEngine(Filter filter, OutputSink out, int jobs) {
+        this.filter = filter;
+        this.out = out;
+        this.pool = new ForkJoinPool(jobs);
+    }
+
+    // Searches one starting point, "display" is how the user wrote it
+    public void search(Path start, String display) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        Path name = (start.getFileName() != null) ? start.getFileName() : start;
+        if (filter.matches(name, display, attrs, now)) {
+            emit(display);
+        }
+        if (attrs.isDirectory() && filter.maxDepth > 0) {
+            pool.invoke(new DirectoryTask(start, display, 1));
+        }
+        synchronized (out) {
+            if (!stopped) {
+                out.flush();
+            }
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final String display;
+        private final int depth;
+
+        DirectoryTask(Path dir, String display, int depth) {
+            this.dir = dir;
+            this.display = display;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped) {
+                return;
+            }
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            StringBuilder matches = new StringBuilder();
+            try {
+                // Depth 1: every child (files and directories) goes through visitFile with its attributes
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path child, BasicFileAttributes attrs) {
+                        Path name = child.getFileName();
+                        boolean directory = attrs.isDirectory();
+                        if (directory && filter.isPruned(name)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        String childDisplay = display.endsWith("/") ? display + name : display + "/" + name;
+                        if (filter.matches(name, childDisplay, attrs, now)) {
+                            matches.append(childDisplay).append('\n');
+                        }
+                        if (directory && depth < filter.maxDepth) {
+                            subdirectories.add(new DirectoryTask(child, childDisplay, depth + 1));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path child, IOException e) {
+                        errors.add(child + ": " + FileErrors.describe(e));
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                errors.add(dir + ": " + FileErrors.describe(e));
+            }
+
+            if (matches.length() > 0) {
+                emitBlock(matches.toString());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    private void emit(String line) throws IOException {
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    // The matches of one directory are written together, the sink is flushed now and then
+    private void emitBlock(String lines) {
+        synchronized (out) {
+            try {
+                out.print(lines);
+                if (System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) {
+                    out.flush();
+                    lastFlush = System.nanoTime();
+                }
+            } catch (Pipe.BrokenPipeException e) {
+                stopped = true;
+            } catch (IOException e) {
+                errors.add("cannot write output: " + e.getMessage());
+                stopped = true;
+            }
+        }
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
+
+
+// Size engine behind "du".
+// Every directory is a ForkJoin task that lists its children with their attributes, adds up
+// the files and forks one task per subdirectory. The allocated size of a file is its size
+// rounded up to the block size of the file store (the JDK does not expose st_blocks, so sparse
+// files count as full).
+// With a cache file, what a directory holds directly (the sizes of its files and the names of
+// its subdirectories) is saved with the directory mtime. A directory whose mtime did not change
+// is not listed again: only its subdirectories are stat'ed. The mtime of a directory changes when
+// entries are added, removed or renamed, not when a file in it is rewritten in place, so a cached
+// directory can miss such a size change until something is added to or removed from it.
+// A file with several hard links is counted once per run, in the first listed directory that
+// has it. Directories that share a file with another one are not cached, so the next run lists
+// them again and counts the file once again (a directory taken from the cache still counts
+// what it held when it was listed, a link made since then to one of its files is counted twice).
+class DuEngine {
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+    private static final int CACHE_MAGIC = 0x44554331;     // "DUC1"
+    private static final long DEFAULT_BLOCK_SIZE = 4096;
+
+    // One directory of the result
+    static class Node {
+        final Path path;
+        final String display;
+        final long mtime;
+        long ownApparent;           // the directory itself and the files directly in it
+        long ownAllocated;
+        long totalApparent;         // with all the subdirectories
+        long totalAllocated;
+        final List<Node> children = new ArrayList<>();
+
+        Node(Path path, String display, long mtime) {
+            this.path = path;
+            this.display = display;
+            this.mtime = mtime;
+        }
+    }
+
+    // What the cache knows about one directory
+    private static class CacheEntry {
+        final long mtime;
+        final long apparent;
+        final long allocated;
+        final String[] subdirectories;
+
+        CacheEntry(long mtime, long apparent, long allocated, String[] subdirectories) {
+            this.mtime = mtime;
+            this.apparent = apparent;
+            this.allocated = allocated;
+            this.subdirectories = subdirectories;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Path cacheFile;
+    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Object, String> seenFiles = new ConcurrentHashMap<>();    // fileKey -> directory
+    private final Set<String> sharingFiles = ConcurrentHashMap.newKeySet();     // never cached
+    private final Set<String> visited = ConcurrentHashMap.newKeySet();          // directories of this run
+    private final List<Path> roots = new ArrayList<>();
+    private long blockSize = DEFAULT_BLOCK_SIZE;
+
+    DuEngine(int jobs, Path cacheFile) {
+        this.pool = new ForkJoinPool(jobs);
+        this.cacheFile = cacheFile;
+        if (cacheFile != null) {
+            loadCache();
+        }
+    }
+
+    public Node measure(Path start, String display) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        try {
+            long storeBlock = Files.getFileStore(start).getBlockSize();
+            blockSize = (storeBlock > 0) ? storeBlock : DEFAULT_BLOCK_SIZE;
+        } catch (IOException | UnsupportedOperationException e) {
+            blockSize = DEFAULT_BLOCK_SIZE;
+        }
+
+        Node node = new Node(start, display, attrs.lastModifiedTime().toMillis());
+        if (attrs.isDirectory()) {
+            pool.invoke(new DirectoryTask(node));
+            roots.add(start);
+        } else {
+            node.ownApparent = attrs.size();
+            node.ownAllocated = allocated(attrs.size());
+            node.totalApparent = node.ownApparent;
+            node.totalAllocated = node.ownAllocated;
+        }
+        return node;
+    }
+
+    private long allocated(long size) {
+        return (size + blockSize - 1) / blockSize * blockSize;
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Node node;
+
+        DirectoryTask(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            String key = node.path.toString();
+            if (cacheFile != null) {
+                visited.add(key);
+            }
+            CacheEntry cached = cache.get(key);
+            if (cached != null && cached.mtime == node.mtime) {
+                fromCache(cached);
+            } else {
+                list();
+            }
+
+            List<DirectoryTask> subtasks = new ArrayList<>(node.children.size());
+            for (Node child : node.children) {
+                subtasks.add(new DirectoryTask(child));
+            }
+            invokeAll(subtasks);
+
+            node.totalApparent = node.ownApparent;
+            node.totalAllocated = node.ownAllocated;
+            for (Node child : node.children) {
+                node.totalApparent += child.totalApparent;
+                node.totalAllocated += child.totalAllocated;
+            }
+        }
+
+        // Unchanged directory: its own sizes come from the cache, the subdirectories are only stat'ed
+        private void fromCache(CacheEntry cached) {
+            node.ownApparent = cached.apparent;
+            node.ownAllocated = cached.allocated;
+            for (String name : cached.subdirectories) {
+                Path child = node.path.resolve(name);
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        node.children.add(new Node(child, childDisplay(name), attrs.lastModifiedTime().toMillis()));
+                    }
+                } catch (IOException e) {
+                    // gone since the last run: the mtime check of the parent would normally catch it
+                }
+            }
+        }
+
+        private void list() {
+            List<String> subdirectories = new ArrayList<>();
+            long[] own = {0, 0};
+            try {
+                BasicFileAttributes self = Files.readAttributes(node.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                own[0] = self.size();
+                own[1] = allocated(self.size());
+                Files.walkFileTree(node.path, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path child, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            String name = child.getFileName().toString();
+                            subdirectories.add(name);
+                            node.children.add(new Node(child, childDisplay(name), attrs.lastModifiedTime().toMillis()));
+                        } else if (isFirstLink(attrs.fileKey())) {
+                            own[0] += attrs.size();
+                            own[1] += allocated(attrs.size());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path child, IOException e) {
+                        errors.add("cannot access '" + child + "': " + FileErrors.describe(e));
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                errors.add("cannot read directory '" + node.path + "': " + FileErrors.describe(e));
+                return;
+            }
+            node.ownApparent = own[0];
+            node.ownAllocated = own[1];
+            if (cacheFile != null) {
+                cache.put(node.path.toString(), new CacheEntry(node.mtime, own[0], own[1], subdirectories.toArray(new String[0])));
+            }
+        }
+
+        // Whether this is the first directory of the run that has the file
+        private boolean isFirstLink(Object fileKey) {
+            if (fileKey == null) {
+                return true;
+            }
+            String key = node.path.toString();
+            String first = seenFiles.putIfAbsent(fileKey, key);
+            if (first == null) {
+                return true;
+            }
+            if (!first.equals(key)) {
+                sharingFiles.add(first);
+                sharingFiles.add(key);
+            }
+            return false;
+        }
+
+        private String childDisplay(String name) {
+            return node.display.endsWith("/") ? node.display + name : node.display + "/" + name;
+        }
+    }
+
+    // 512, 4.0K, 23M, 1.2G like du -h
+    static String humanSize(long bytes) {
+        if (bytes < 1024) {
+            return Long.toString(bytes);
+        }
+        String units = "KMGTPE";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        if (value < 10) {
+            return String.format("%.1f%c", Math.ceil(value * 10) / 10, units.charAt(unit));
+        }
+        return String.format("%d%c", (long) Math.ceil(value), units.charAt(unit));
+    }
+
+    private void loadCache() {
+        CacheFile.load(cacheFile, CACHE_MAGIC, cache, in -> {
+            long mtime = in.readLong();
+            long apparent = in.readLong();
+            long allocated = in.readLong();
+            String[] subdirectories = new String[in.readInt()];
+            for (int j = 0; j < subdirectories.length; j++) {
+                subdirectories[j] = in.readUTF();
+            }
+            return new CacheEntry(mtime, apparent, allocated, subdirectories);
+        });
+    }
+
+    // A directory under one of the roots of this run that the walk did not reach is gone (or
+    // was moved): its entry is not saved again. Entries of other trees are kept.
+    private boolean isStale(String directory) {
+        if (visited.contains(directory)) {
+            return false;
+        }
+        Path path = Paths.get(directory);
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void saveCache() throws IOException {
+        cache.keySet().removeIf(directory -> sharingFiles.contains(directory) || isStale(directory));
+        CacheFile.save(cacheFile, CACHE_MAGIC, cache, (out, entry) -> {
+            out.writeLong(entry.mtime);
+            out.writeLong(entry.apparent);
+            out.writeLong(entry.allocated);
+            out.writeInt(entry.subdirectories.length);
+            for (String name : entry.subdirectories) {
+                out.writeUTF(name);
+            }
+        });
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        if (cacheFile != null) {
+            try {
+                saveCache();
+            } catch (IOException e) {
+                errors.add("cannot write cache " + cacheFile + ": " + e.getMessage());
+            }
+        }
+    }
+}
+
+
+// Hashing behind sha256sum, md5sum and crc32, and behind cp --verify / unzip --verify.
+// Files are read through one direct buffer per thread, so MessageDigest, CRC32 and CRC32C work
+// on native memory without copying into a byte[] (the CRCs and SHA use CPU intrinsics when there
+// are some). submit() queues a file on the pool; ready() returns the finished results in
+// submission order, waiting only when too many are in flight (or at the end).
+class HashEngine {
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    static class Result {
+        final String name;
+        final String hash;
+        final String expected;      // from the manifest, null when just hashing
+        final String error;
+
+        Result(String name, String hash, String expected, String error) {
+            this.name = name;
+            this.hash = hash;
+            this.expected = expected;
+            this.error = error;
+        }
+    }
+
+    private final String algorithm;
+    private final ExecutorService workers;
+    private final int window;
+    private final HashCache cache;
+    private final ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+
+    HashEngine(String algorithm, int jobs, Path cacheFile) {
+        this.algorithm = algorithm;
+        this.workers = Executors.newFixedThreadPool(jobs);
+        this.window = jobs * 4;
+        this.cache = (cacheFile != null) ? new HashCache(cacheFile) : null;
+    }
+
+    public void submit(Path file, String name) {
+        submit(file, name, null);
+    }
+
+    public void submit(Path file, String name, String expected) {
+        pending.add(workers.submit(() -> {
+            try {
+                return new Result(name, hashCached(file), expected, null);
+            } catch (NoSuchFileException e) {
+                return new Result(name, null, expected, "No such file or directory");
+            } catch (IOException e) {
+                return new Result(name, null, expected, e.getMessage());
+            }
+        }));
+    }
+
+    // The results that can be written now, everything when "all" is set
+    public List<Result> ready(boolean all) throws IOException {
+        List<Result> results = new ArrayList<>();
+        while (!pending.isEmpty() && (all || pending.size() > window || pending.peek().isDone())) {
+            try {
+                results.add(pending.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("hashing interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private String hashCached(Path file) throws IOException {
+        if (cache == null) {
+            return hash(file, algorithm);
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String known = cache.get(algorithm, file, attrs);
+        if (known != null) {
+            return known;
+        }
+        String hash = hash(file, algorithm);
+        cache.put(algorithm, file, attrs, hash);
+        return hash;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        if (cache != null) {
+            cache.save();
+        }
+    }
+
+    // Hex hash of a file: "SHA-256", "MD5", "CRC32C" or "CRC32" (the one zip files use)
+    static String hash(Path file, String algorithm) throws IOException {
+        Hasher hasher = newHasher(algorithm);
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            IoCounters.file();
+            buffer.clear();
+            int n;
+            while ((n = channel.read(buffer)) != -1) {
+                IoCounters.read(n);
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hasher.finish();
+    }
+
+    // Input of unknown size (a pipe)
+    static String hash(InputStream in, String algorithm) throws IOException {
+        Hasher hasher = newHasher(algorithm);
+        byte[] block = new byte[Terminal.CHUNK_SIZE];
+        int length;
+        while ((length = in.read(block)) != -1) {
+            hasher.update(ByteBuffer.wrap(block, 0, length));
+        }
+        return hasher.finish();
+    }
+
+    // The same bytes on both sides (cp --verify), CRC-32C of each
+    static boolean sameContent(Path source, Path copy) throws IOException {
+        return Files.size(source) == Files.size(copy) && hash(source, "CRC32C").equals(hash(copy, "CRC32C"));
+    }
+
+    private interface Hasher {
+        void update(ByteBuffer data);
+
+        String finish();
+    }
+
+    private static Hasher newHasher(String algorithm) {
+        if (algorithm.equals("CRC32C") || algorithm.equals("CRC32")) {
+            Checksum checksum = algorithm.equals("CRC32C") ? new CRC32C() : new CRC32();
+            return new Hasher() {
+                public void update(ByteBuffer data) {
+                    checksum.update(data);
+                }
+
+                public String finish() {
+                    return String.format("%08x", checksum.getValue());
+                }
+            };
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(algorithm, e);
+        }
+        return new Hasher() {
+            public void update(ByteBuffer data) {
+                digest.update(data);
+            }
+
+            public String finish() {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return hex.toString();
+            }
+        };
+    }
+}
+
+
+// Persistent hashes for --cache: a hash is reused while the file keeps the same size,
+// modification time and inode (file key). Saved like the du cache: one binary file,
+// replaced atomically.
+class HashCache {
+    private static final int MAGIC = 0x48534331;       // "HSC1"
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final String fileKey;
+        final String hash;
+
+        Entry(long size, long mtime, String fileKey, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+    }
+
+    private final Path file;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean changed = false;
+
+    HashCache(Path file) {
+        this.file = file;
+        load();
+    }
+
+    String get(String algorithm, Path path, BasicFileAttributes attrs) {
+        Entry entry = entries.get(key(algorithm, path));
+        if (entry != null && entry.size == attrs.size() && entry.mtime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                && entry.fileKey.equals(String.valueOf(attrs.fileKey()))) {
+            return entry.hash;
+        }
+        return null;
+    }
+
+    void put(String algorithm, Path path, BasicFileAttributes attrs, String hash) {
+        entries.put(key(algorithm, path), new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                String.valueOf(attrs.fileKey()), hash));
+        changed = true;
+    }
+
+    private static String key(String algorithm, Path path) {
+        return algorithm + ":" + path.toAbsolutePath().normalize();
+    }
+
+    private void load() {
+        CacheFile.load(file, MAGIC, entries, in -> new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF()));
+    }
+
+    void save() {
+        if (!changed) {
+            return;
+        }
+        try {
+            CacheFile.save(file, MAGIC, entries, (out, entry) -> {
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeUTF(entry.fileKey);
+                out.writeUTF(entry.hash);
+            });
+        } catch (IOException e) {
+            // the cache is only an optimization, the hashes were printed anyway
+        }
+    }
+}
+
+
+// The cache files of du and of the checksum commands: a magic number, the number of entries,
+// then each entry as its key and what the command stores for it. A missing, foreign or damaged
+// file reads as an empty cache, the next save replaces it. A save goes to a temp file that is
+// moved in place, so a command that dies half way keeps the old cache.
+final class CacheFile {
+    interface EntryReader<V> {
+        V read(DataInputStream in) throws IOException;
+    }
+
+    interface EntryWriter<V> {
+        void write(DataOutputStream out, V value) throws IOException;
+    }
+
+    private CacheFile() {
+    }
+
+    static <V> void load(Path file, int magic, Map<String, V> entries, EntryReader<V> reader) {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), Terminal.CHUNK_SIZE))) {
+            if (in.readInt() != magic) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                entries.put(key, reader.read(in));
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    static <V> void save(Path file, int magic, Map<String, V> entries, EntryWriter<V> writer) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), Terminal.CHUNK_SIZE))) {
+                out.writeInt(magic);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, V> item : entries.entrySet()) {
+                    out.writeUTF(item.getKey());
+                    writer.write(out, item.getValue());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
+
+
+// Search engine behind "grep".
+// Files are memory-mapped in segments that end on a line boundary. A literal pattern (no regex
+// special chars, or -F) is searched with Boyer-Moore-Horspool directly on the mapped bytes, so
+// only the matching lines are ever copied. Other patterns (and -i) fall back to
+// java.util.regex, line by line. Each search returns its whole output, so files can be searched
+// in parallel and still printed in order.
+class GrepEngine {
+    // Largest piece of a file mapped at once
+    static final int SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    // SEGMENT_SIZE, smaller in the tests so that small files span several segments
+    int segmentSize = SEGMENT_SIZE;
+
+    private final byte[] literal;       // null when the regex is used
+    private final int[] shift = new int[256];
+    private final Pattern regex;
+    private final boolean countOnly;
+    private final boolean namesOnly;
+    private final boolean lineNumbers;
+    private final boolean withNames;
+
+    GrepEngine(String pattern, boolean ignoreCase, boolean fixed, boolean countOnly, boolean namesOnly,
+               boolean lineNumbers, boolean withNames) {
+        this.countOnly = countOnly;
+        this.namesOnly = namesOnly;
+        this.lineNumbers = lineNumbers;
+        this.withNames = withNames;
+
+        boolean isLiteral = fixed || !pattern.matches(".*[\\\\.\\[\\]()*+?{}|^$].*");
+        if (isLiteral && !ignoreCase && !pattern.isEmpty()) {
+            literal = pattern.getBytes(StandardCharsets.UTF_8);
+            regex = null;
+            // Horspool shift table: how far we can jump when the last byte of the window is b
+            Arrays.fill(shift, literal.length);
+            for (int k = 0; k < literal.length - 1; k++) {
+                shift[literal[k] & 0xFF] = literal.length - 1 - k;
+            }
+        } else {
+            literal = null;
+            int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+            regex = Pattern.compile(isLiteral ? Pattern.quote(pattern) : pattern, flags);
+        }
+    }
+
+    // Both search methods write the output as they go and return the number of matching lines
+    public long search(Path file, String name, OutputStream output) throws IOException {
+        Collector collector = new Collector(name, output);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            IoCounters.file();
+            IoCounters.read(size);
+            while (position < size && !collector.done()) {
+                long length = Math.min(segmentSize, size - position);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (int) length;
+                // Cut the segment after its last newline, the rest goes into the next segment
+                if (position + length < size) {
+                    int lastNewline = end - 1;
+                    while (lastNewline >= 0 && segment.get(lastNewline) != '\n') {
+                        lastNewline--;
+                    }
+                    if (lastNewline >= 0) {
+                        end = lastNewline + 1;
+                    }
+                }
+                if (literal != null) {
+                    searchLiteral(segment, end, collector);
+                } else {
+                    searchRegex(segment, end, collector);
+                }
+                position += end;
+            }
+        }
+        return collector.finish();
+    }
+
+    // Input of unknown size (a pipe), read line by line
+    public long search(InputStream in, String name, OutputStream output) throws IOException {
+        Collector collector = new Collector(name, output);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), Terminal.CHUNK_SIZE);
+        String literalText = (literal != null) ? new String(literal, StandardCharsets.UTF_8) : null;
+        String line;
+        while (!collector.done() && (line = reader.readLine()) != null) {
+            collector.lineNumber++;
+            boolean found = (literalText != null) ? line.contains(literalText) : regex.matcher(line).find();
+            if (found) {
+                collector.match(line);
+            }
+        }
+        return collector.finish();
+    }
+
+    private void searchLiteral(ByteBuffer data, int end, Collector collector) throws IOException {
+        int m = literal.length;
+        int last = m - 1;
+        int counted = 0;        // newlines before this position are already in linesBefore
+        int i = 0;
+        while (i <= end - m && !collector.done()) {
+            // Compare from the end of the pattern, jump by the shift of the last byte on a mismatch
+            int j = last;
+            while (j >= 0 && data.get(i + j) == literal[j]) {
+                j--;
+            }
+            if (j >= 0) {
+                i += shift[data.get(i + last) & 0xFF];
+                continue;
+            }
+
+            // Found: take the whole line, then continue after it
+            int start = i;
+            while (start > 0 && data.get(start - 1) != '\n') {
+                start--;
+            }
+            int stop = i + m;
+            while (stop < end && data.get(stop) != '\n') {
+                stop++;
+            }
+            if (lineNumbers) {
+                collector.linesBefore += countNewlines(data, counted, start);
+                collector.lineNumber = collector.linesBefore + 1;
+                counted = start;
+            }
+            collector.match(data, start, stop);
+            i = stop + 1;
+        }
+        if (lineNumbers) {
+            // The next segment continues counting from here
+            collector.linesBefore += countNewlines(data, counted, end);
+        }
+    }
+
+    private static long countNewlines(ByteBuffer data, int from, int to) {
+        long count = 0;
+        for (int k = from; k < to; k++) {
+            if (data.get(k) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void searchRegex(ByteBuffer data, int end, Collector collector) throws IOException {
+        byte[] line = new byte[256];
+        int start = 0;
+        while (start < end && !collector.done()) {
+            int stop = start;
+            while (stop < end && data.get(stop) != '\n') {
+                stop++;
+            }
+            int length = stop - start;
+            if (line.length < length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            data.get(start, line, 0, length);
+            collector.lineNumber++;
+            if (regex.matcher(new String(line, 0, length, StandardCharsets.UTF_8)).find()) {
+                collector.match(data, start, stop);
+            }
+            start = stop + 1;
+        }
+    }
+
+    // Writes the output of one file according to -c, -l, -n and the file name prefix
+    private class Collector {
+        private final String name;
+        private final OutputStream output;
+        private final byte[] prefix;
+        private byte[] line = new byte[256];
+        long lineNumber = 0;    // number of the current line
+        long linesBefore = 0;   // lines before the current segment position (literal search)
+        long matches = 0;
+
+        Collector(String name, OutputStream output) {
+            this.name = name;
+            this.output = output;
+            this.prefix = (name + ":").getBytes(StandardCharsets.UTF_8);
+        }
+
+        // -l only needs the first match
+        boolean done() {
+            return namesOnly && matches > 0;
+        }
+
+        void match(ByteBuffer data, int start, int stop) throws IOException {
+            matches++;
+            if (countOnly || namesOnly) {
+                return;
+            }
+            writePrefix();
+            // The line and its newline in one write
+            int length = stop - start;
+            if (line.length < length + 1) {
+                line = new byte[Math.max(length + 1, line.length * 2)];
+            }
+            data.get(start, line, 0, length);
+            line[length] = '\n';
+            output.write(line, 0, length + 1);
+        }
+
+        void match(String text) throws IOException {
+            matches++;
+            if (countOnly || namesOnly) {
+                return;
+            }
+            writePrefix();
+            output.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writePrefix() throws IOException {
+            if (withNames) {
+                output.write(prefix);
+            }
+            if (lineNumbers) {
+                output.write((lineNumber + ":").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // The -l or -c line once the file is done, returns the number of matches
+        long finish() throws IOException {
+            if (namesOnly && matches > 0) {
+                output.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+            } else if (countOnly) {
+                String text = (withNames ? name + ":" : "") + matches + "\n";
+                output.write(text.getBytes(StandardCharsets.UTF_8));
+            }
+            return matches;
+        }
+    }
+
+    // Output of one file searched in parallel, while the files before it are still being
+    // written. The file at the front of the queue writes straight into the sink (attach);
+    // the ones behind it keep at most LIMIT bytes in memory, then wait for their turn.
+    // Files are submitted in order to a FIFO pool, so the front file is always running or done.
+    static class OrderedOutput extends OutputStream {
+        static final int LIMIT = 1024 * 1024;
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputSink sink;        // set once this file is at the front
+
+        synchronized void attach(OutputSink out) throws IOException {
+            out.write(buffer.toByteArray(), 0, buffer.size());
+            buffer.reset();
+            sink = out;
+            notifyAll();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) throws IOException {
+            while (sink == null && buffer.size() + length > LIMIT) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("grep interrupted");
+                }
+            }
+            if (sink != null) {
+                sink.write(data, offset, length);
+            } else {
+                buffer.write(data, offset, length);
+            }
+        }
+    }
+}
+
+
+// Progress and cancellation of one background job. The engines behind cp, zip, unzip and rm -r
+// report the bytes and files they are done with, and check the flag between files or blocks;
+// "kill" sets it. Foreground commands share NONE, which is never cancelled.
+class JobControl {
+    static final JobControl NONE = new JobControl();
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private volatile boolean cancelled = false;
+
+    void progress(long doneBytes, int doneFiles) {
+        bytes.add(doneBytes);
+        files.add(doneFiles);
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    // For code that can just give up with an IOException
+    void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    boolean hasProgress() {
+        return files.sum() > 0 || bytes.sum() > 0;
+    }
+
+    String describe() {
+        return files.sum() + " files, " + CommandStats.formatBytes(bytes.sum());
+    }
+}
+
+
+// The background jobs of a session ("cmd &"). Java 17 has no virtual threads, so every job
+// runs on a thread of a cached daemon pool: a job only holds a thread while it runs, and as
+// many big copies or archives as wanted can overlap. Numbers start again at 1 once the table
+// is empty, like in a shell.
+class JobTable {
+    private static final ExecutorService JOB_THREADS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "background-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Exit status of a job stopped by kill (128 + SIGTERM, like a shell)
+    static final int KILLED_STATUS = 143;
+
+    class Job {
+        final int id;
+        final String text;
+        final JobControl control;
+        final ByteArrayOutputStream output;
+        final ByteArrayOutputStream errors;
+        private final long start = System.nanoTime();
+        private volatile long end = 0;
+        private volatile Thread thread;
+        private Future<Integer> future;
+
+        Job(int id, String text, JobControl control, ByteArrayOutputStream output, ByteArrayOutputStream errors) {
+            this.id = id;
+            this.text = text;
+            this.control = control;
+            this.output = output;
+            this.errors = errors;
+        }
+
+        boolean isDone() {
+            return future.isDone();
+        }
+
+        // Waits at most the given time, true once the job is done
+        boolean await(long timeout, TimeUnit unit) throws InterruptedIOException {
+            try {
+                future.get(timeout, unit);
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException | CancellationException e) {
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("wait interrupted");
+            }
+        }
+
+        void awaitUninterruptibly() {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (ExecutionException | CancellationException e) {
+                    return;
+                } catch (InterruptedException e) {
+                    // keep waiting, the job still writes into its buffers
+                }
+            }
+        }
+
+        // kill: the flag stops the engines, the interrupt wakes up a job that waits or does channel I/O
+        void cancel() {
+            control.cancel();
+            Thread running = thread;
+            if (running != null) {
+                running.interrupt();
+            }
+        }
+
+        int status() {
+            if (!isDone()) {
+                return 0;
+            }
+            if (control.isCancelled()) {
+                return KILLED_STATUS;
+            }
+            try {
+                return future.get();
+            } catch (ExecutionException | CancellationException | InterruptedException e) {
+                return 1;
+            }
+        }
+
+        String state() {
+            if (!isDone()) {
+                return "Running";
+            }
+            if (control.isCancelled()) {
+                return "Terminated";
+            }
+            int status = status();
+            return (status == 0) ? "Done" : "Exit " + status;
+        }
+
+        // [1]  Running  12.3 s  1204 files, 350.2 MB  cp -r src dst
+        String describe() {
+            long elapsed = ((end != 0) ? end : System.nanoTime()) - start;
+            String progress = control.hasProgress() ? "  " + control.describe() : "";
+            return String.format("[%d]  %-10s %s%s  %s", id, state(), CommandStats.formatNanos(elapsed), progress, text);
+        }
+    }
+
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    synchronized Job start(String text, JobControl control, ByteArrayOutputStream output, ByteArrayOutputStream errors,
+                           Callable<Integer> work) {
+        int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+        Job job = new Job(id, text, control, output, errors);
+        jobs.put(id, job);
+        job.future = JOB_THREADS.submit(() -> {
+            job.thread = Thread.currentThread();
+            try {
+                return control.isCancelled() ? KILLED_STATUS : work.call();
+            } finally {
+                job.thread = null;
+                job.end = System.nanoTime();
+                // A kill that came at the very end must not stay on the pooled thread
+                Thread.interrupted();
+            }
+        });
+        return job;
+    }
+
+    synchronized Job get(int id) {
+        return jobs.get(id);
+    }
+
+    synchronized List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    // True if the job was still in the table (its output was not shown yet)
+    synchronized boolean remove(Job job) {
+        return jobs.remove(job.id, job);
+    }
+
+    // Removes and returns the jobs that are done
+    synchronized List<Job> takeFinished() {
+        List<Job> finished = new ArrayList<>();
+        Iterator<Job> all = jobs.values().iterator();
+        while (all.hasNext()) {
+            Job job = all.next();
+            if (job.isDone()) {
+                finished.add(job);
+                all.remove();
+            }
+        }
+        return finished;
+    }
+}
+
+
+// How the engines that walk trees (cp -r, rm -r, find, du) report the files they could not handle
+final class FileErrors {
+    // How many errors are listed in a summary before we just count them
+    static final int MAX_LISTED = 10;
+
+    private FileErrors() {
+    }
+
+    // The reason only, like the shell tools: the path is already in front of it
+    static String describe(IOException e) {
+        if (e instanceof AccessDeniedException) {
+            return "Permission denied";
+        }
+        if (e instanceof DirectoryNotEmptyException) {
+            return "Directory not empty";
+        }
+        return e.getMessage();
+    }
+
+    // "N error(s):" and the first MAX_LISTED of them, at the end of a summary
+    static void appendSummary(StringBuilder sb, List<String> errors) {
+        if (errors.isEmpty()) {
+            return;
+        }
+        sb.append("\n").append(errors.size()).append(" error(s):");
+        for (int i = 0; i < Math.min(errors.size(), MAX_LISTED); i++) {
+            sb.append("\n  ").append(errors.get(i));
+        }
+        if (errors.size() > MAX_LISTED) {
+            sb.append("\n  ... and ").append(errors.size() - MAX_LISTED).append(" more");
+        }
+    }
+}
+
+
+// Process-wide I/O counters, bumped by the sinks and engines where the bytes actually move.
+// A command's share is the difference between two snapshots, so when commands run at the same
+// time (batch --jobs, pipelines) each one also sees the I/O of the others.
+final class IoCounters {
+    private static final LongAdder READ = new LongAdder();
+    private static final LongAdder WRITTEN = new LongAdder();
+    private static final LongAdder FILES = new LongAdder();
+
+    private IoCounters() {
+    }
+
+    static void read(long bytes) {
+        READ.add(bytes);
+    }
+
+    static void written(long bytes) {
+        WRITTEN.add(bytes);
+    }
+
+    // A file opened, created or deleted by a command
+    static void file() {
+        FILES.increment();
+    }
+
+    // A whole file copied from one place to another
+    static void copied(long bytes) {
+        READ.add(bytes);
+        WRITTEN.add(bytes);
+        FILES.increment();
+    }
+
+    // {read, written, files}
+    static long[] snapshot() {
+        return new long[] {READ.sum(), WRITTEN.sum(), FILES.sum()};
+    }
+}
+
+
+// Latency histogram in the style of HdrHistogram: values below 128 get one bucket each,
+// above that every power of two is split into 64 buckets, so any value is kept within
+// about 1.5% whatever its size (microseconds to hours) in a fixed 30 KB of counters.
+// Recording is one atomic increment, safe from any thread.
+class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;        // 128
+    private static final int HALF = SUB_COUNT / 2;              // 64 buckets per power of two
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + (63 - SUB_BITS) * HALF);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - (SUB_BITS - 1);
+        int sub = (int) (value >>> shift);          // between 64 and 127
+        return SUB_COUNT + (exponent - SUB_BITS) * HALF + (sub - HALF);
+    }
+
+    // Highest value that falls in the bucket
+    private static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int k = index - SUB_COUNT;
+        int exponent = k / HALF + SUB_BITS;
+        int shift = exponent - (SUB_BITS - 1);
+        long sub = k % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    // The value under which "percentile" percent of the recorded values are
+    public long percentile(double percentile) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestValue(i), max());
+            }
+        }
+        return max();
+    }
+}
+
+
+// Flight Recorder event written for every command, so a recording
+// (java -XX:StartFlightRecording=filename=run.jfr ...) shows which command lines were slow and why
+@Name("cli.Command")
+@Label("Command")
+@Category("CLI")
+@Description("One command run by the terminal, with the I/O and allocation it caused")
+@StackTrace(false)
+class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Arguments")
+    String arguments;
+
+    @Label("Exit Status")
+    int status;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Files")
+    long files;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
+
+
+// Per-command statistics behind "stats" and --trace: a latency histogram, bytes read and
+// written, files touched and heap allocated, for every command name. Allocation is the sum
+// over all live threads (the engines allocate on their pools), taken before and after the command.
+// Loading the management beans and the JFR event classes costs several hundred ms of startup,
+// so allocation is only measured with --trace or while a flight recording runs, and the event
+// is only created while a recording runs.
+class CommandStats {
+    private static final ConcurrentHashMap<String, Entry> COMMANDS = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder read = new LongAdder();
+        final LongAdder written = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+    }
+
+    // One running command
+    static class Sample {
+        private final String command;
+        private final CommandEvent event;
+        private final long[] io = IoCounters.snapshot();
+        private final long allocatedBefore;
+        private final long start;
+        private long elapsed, read, written, files, allocated;
+        private int status;
+
+        Sample(String command, String[] args, boolean detailed) {
+            this.command = command;
+            boolean recording = FlightRecorder.isInitialized();
+            allocatedBefore = (detailed || recording) ? Allocation.bytes() : -1;
+            if (recording) {
+                event = new CommandEvent();
+                event.command = command;
+                event.arguments = String.join(" ", args);
+                event.begin();
+            } else {
+                event = null;
+            }
+            start = System.nanoTime();
+        }
+
+        void stop(int status) {
+            this.status = status;
+            elapsed = System.nanoTime() - start;
+            long[] after = IoCounters.snapshot();
+            read = after[0] - io[0];
+            written = after[1] - io[1];
+            files = after[2] - io[2];
+            allocated = (allocatedBefore < 0) ? 0 : Math.max(Allocation.bytes() - allocatedBefore, 0);
+
+            // No lambda here, it would cost startup time on the first command
+            Entry entry = COMMANDS.get(command);
+            if (entry == null) {
+                COMMANDS.putIfAbsent(command, new Entry());
+                entry = COMMANDS.get(command);
+            }
+            entry.latency.record(elapsed);
+            entry.read.add(read);
+            entry.written.add(written);
+            entry.files.add(files);
+            entry.allocated.add(allocated);
+
+            if (event != null && event.shouldCommit()) {
+                event.status = status;
+                event.bytesRead = read;
+                event.bytesWritten = written;
+                event.files = files;
+                event.allocated = allocated;
+                event.commit();
+            }
+        }
+
+        String traceLine() {
+            return String.format("[trace] %s: %s, read %s, written %s, %d files, allocated %s, status %d",
+                    command, formatNanos(elapsed), formatBytes(read), formatBytes(written), files, formatBytes(allocated), status);
+        }
+    }
+
+    static Sample start(String command, String[] args, boolean detailed) {
+        return new Sample(command, args, detailed);
+    }
+
+    public static void report(OutputSink out) throws IOException {
+        out.println(String.format("%-10s %7s %10s %10s %10s %10s %10s %10s %10s %8s %10s",
+                "command", "count", "mean", "p50", "p90", "p99", "max", "read", "written", "files", "allocated"));
+        for (Map.Entry<String, Entry> item : new TreeMap<>(COMMANDS).entrySet()) {
+            Entry entry = item.getValue();
+            LatencyHistogram latency = entry.latency;
+            out.println(String.format("%-10s %7d %10s %10s %10s %10s %10s %10s %10s %8d %10s",
+                    item.getKey(), latency.count(), formatNanos((long) latency.mean()), formatNanos(latency.percentile(50)),
+                    formatNanos(latency.percentile(90)), formatNanos(latency.percentile(99)), formatNanos(latency.max()),
+                    formatBytes(entry.read.sum()), formatBytes(entry.written.sum()), entry.files.sum(),
+                    formatBytes(entry.allocated.sum())));
+        }
+    }
+
+    public static void reset() {
+        COMMANDS.clear();
+    }
+
+    // Loaded on first use only (holder class)
+    private static class Allocation {
+        private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+        private static com.sun.management.ThreadMXBean threadBean() {
+            try {
+                java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                if (bean instanceof com.sun.management.ThreadMXBean) {
+                    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                    if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                        return threads;
+                    }
+                }
+            } catch (RuntimeException | LinkageError e) {
+                // no management support in this runtime, allocation is not measured
+            }
+            return null;
+        }
+
+        // Bytes allocated so far by all live threads, -1 when the JVM cannot tell
+        static long bytes() {
+            if (THREADS == null) {
+                return -1;
+            }
+            long total = 0;
+            for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+                if (bytes > 0) {
+                    total += bytes;
+                }
+            }
+            return total;
+        }
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 1000) {
+            return nanos + " ns";
+        }
+        if (nanos < 1_000_000L) {
+            return String.format("%.1f us", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000L) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
+
+
+// "Terminal --daemon": one long-lived process that runs the scripts of its clients, so a
+// short command costs a socket round trip instead of a JVM start.
+// Protocol on the Unix domain socket: the client sends one hello line
+// "<jobs> <stop on error 0|1> <working directory>", then the script, one command per line,
+// and shuts down its output. The daemon answers with frames, a type byte, a 4 byte length and
+// the payload: 'O' output, 'E' error output, 'X' the exit status (4 bytes), which is the last one.
+// A hello line "plain <jobs> <0|1> <working directory>" asks for the plain protocol instead:
+// output and errors come back as they are, in the order they were written (like 2>&1), and
+// the daemon closes the connection at the end without an exit status. That is what
+// bin/cli-connect uses, so any socat or nc -U can be the client and no JVM starts at all.
+// Every connection gets its own terminal (directory, jobs) on its own thread; a session
+// runs exactly like "Terminal -f script" would.
+class DaemonServer {
+    static final byte OUTPUT = 'O';
+    static final byte ERROR = 'E';
+    static final byte EXIT = 'X';
+
+    private static final ExecutorService SESSION_THREADS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "daemon-session");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // $XDG_RUNTIME_DIR/cli.sock when there is one (private to the user), else ~/.cache/cli.sock
+    static Path defaultSocket() {
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime != null && !runtime.isEmpty()) {
+            return Paths.get(runtime, "cli.sock");
+        }
+        return Paths.get(System.getProperty("user.home"), ".cache", "cli.sock");
+    }
+
+    static void serve(Terminal base, Path socket) throws IOException {
+        Files.createDirectories(socket.toAbsolutePath().getParent());
+        // A socket file left by a daemon that died is removed, a live daemon is left alone
+        if (Files.exists(socket)) {
+            SocketChannel probe;
+            try {
+                probe = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+            } catch (ConnectException e) {
+                probe = null;
+            }
+            if (probe != null) {
+                probe.close();
+                throw new IOException("a daemon is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bindPrivately(server, socket);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // nothing left to do, the process is going away
+                }
+            }));
+            base.err.println("Listening on " + socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                SESSION_THREADS.execute(() -> session(base, client));
+            }
+        }
+    }
+
+    // Whoever can connect runs commands as us. Java cannot set the umask, so the socket is
+    // bound in a new 0700 directory, made rw------- there and only then renamed into place:
+    // it is never reachable with the permissions the umask gave it
+    private static void bindPrivately(ServerSocketChannel server, Path socket) throws IOException {
+        Path directory = Files.createTempDirectory(socket.toAbsolutePath().getParent(), ".cli-",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = directory.resolve("s");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(directory);
+        }
+    }
+
+    private static void session(Terminal base, SocketChannel client) {
+        try (client) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+            String hello = input.readLine();
+            boolean plain = hello != null && hello.startsWith("plain ");
+            if (plain) {
+                hello = hello.substring("plain ".length());
+            }
+            String[] fields = (hello == null) ? new String[0] : hello.split(" ", 3);
+            if (fields.length < 3) {
+                return;
+            }
+            int jobs = Integer.parseInt(fields[0]);
+            boolean stopOnError = fields[1].equals("1");
+
+            FrameWriter frames = new FrameWriter(client, plain);
+            Terminal terminal = base.fork();
+            terminal.jobs = new JobTable();
+            terminal.setErrorStream(new PrintStream(frames.stream(ERROR), true, StandardCharsets.UTF_8));
+            OutputSink out = new OutputSink(frames.channel(OUTPUT), false);
+
+            terminal.cd(new String[] {fields[2]});
+            int result = terminal.status;
+            if (result == 0) {
+                result = terminal.runBatch(input, out, jobs, stopOnError, false);
+            }
+            out.flush();
+            frames.exit(result);
+        } catch (IOException | NumberFormatException e) {
+            // the client went away or did not speak the protocol, the session just ends
+        }
+    }
+
+    // Frames from several threads (a pipeline's stages, the error stream) never interleave.
+    // With the plain protocol only the payloads are written.
+    private static class FrameWriter {
+        private final SocketChannel channel;
+        private final boolean plain;
+
+        FrameWriter(SocketChannel channel, boolean plain) {
+            this.channel = channel;
+            this.plain = plain;
+        }
+
+        synchronized void send(byte type, ByteBuffer payload) throws IOException {
+            if (plain) {
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(5);
+            header.put(type).putInt(payload.remaining()).flip();
+            ByteBuffer[] frame = {header, payload};
+            while (payload.hasRemaining() || header.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        void exit(int status) throws IOException {
+            if (plain) {
+                return;
+            }
+            send(EXIT, ByteBuffer.allocate(4).putInt(0, status));
+        }
+
+        WritableByteChannel channel(byte type) {
+            return new WritableByteChannel() {
+                public int write(ByteBuffer data) throws IOException {
+                    int length = data.remaining();
+                    send(type, data);
+                    return length;
+                }
+
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                public void close() {
+                    // the connection is closed by the session
+                }
+            };
+        }
+
+        OutputStream stream(byte type) {
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    send(type, ByteBuffer.wrap(new byte[] {(byte) b}));
+                }
+
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    send(type, ByteBuffer.wrap(data, offset, length));
+                }
+            };
+        }
+    }
+}
+
+
+// "Terminal --connect": sends the script to the daemon and copies what comes back to
+// stdout and stderr. Returns the exit status of the script.
+class DaemonClient {
+    static int run(Path socket, BufferedReader script, int jobs, boolean stopOnError) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (ConnectException | NoSuchFileException e) {
+            throw new IOException("no daemon listening on " + socket + " (start one with --daemon)");
+        }
+        try (channel) {
+            // The script is sent while the answer is read, a long script cannot fill both buffers
+            Thread sender = new Thread(() -> send(channel, script, jobs, stopOnError), "daemon-client");
+            sender.setDaemon(true);
+            sender.start();
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), Terminal.CHUNK_SIZE);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), Terminal.CHUNK_SIZE));
+            byte[] payload = new byte[Terminal.CHUNK_SIZE];
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    int length = in.readInt();
+                    if (type == DaemonServer.EXIT) {
+                        return in.readInt();
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    in.readFully(payload, 0, length);
+                    if (type == DaemonServer.OUTPUT) {
+                        out.write(payload, 0, length);
+                    } else {
+                        out.flush();
+                        System.err.write(payload, 0, length);
+                        System.err.flush();
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException("the daemon closed the connection");
+            } finally {
+                out.flush();
+            }
+        }
+    }
+
+    private static void send(SocketChannel channel, BufferedReader script, int jobs, boolean stopOnError) {
+        // Not Channels.newOutputStream: its writes wait for the lock the blocked read is holding
+        OutputStream socket = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] data, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket, StandardCharsets.UTF_8), Terminal.CHUNK_SIZE);
+            writer.write(jobs + " " + (stopOnError ? 1 : 0) + " " + Paths.get("").toAbsolutePath() + "\n");
+            String line;
+            while ((line = script.readLine()) != null) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // the daemon stopped reading (exit, -e): the rest of the script is not needed
+        }
+    }
+}
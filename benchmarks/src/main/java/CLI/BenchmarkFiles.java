@@ -0,0 +1,65 @@
+package CLI;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+// Generated test data for the benchmarks, always under a temp directory
+class BenchmarkFiles {
+    private static final String[] WORDS = {"GET", "POST", "/index.html", "200", "404", "user", "agent", "é", "\t", "2024-01-01T00:00:00Z"};
+
+    // A text file of about "size" bytes that looks like a log (lines of words)
+    static Path textFile(Path dir, String name, long size) throws IOException {
+        Path file = dir.resolve(name);
+        Random random = new Random(42);
+        long written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            while (written < size) {
+                StringBuilder line = new StringBuilder();
+                int words = 1 + random.nextInt(12);
+                for (int i = 0; i < words; i++) {
+                    line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                line.append('\n');
+                out.write(line.toString());
+                written += line.length();
+            }
+        }
+        return file;
+    }
+
+    // directories x filesPerDirectory small files of fileSize bytes
+    static Path tree(Path root, int directories, int filesPerDirectory, int fileSize) throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(7).nextBytes(content);
+        for (int d = 0; d < directories; d++) {
+            Path dir = Files.createDirectories(root.resolve("dir" + d));
+            for (int f = 0; f < filesPerDirectory; f++) {
+                Files.write(dir.resolve("file" + f + ".txt"), content);
+            }
+        }
+        return root;
+    }
+
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package CLI;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// cat over generated log files, into a file (zero-copy path) and into a stream (-n scanner)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatBenchmark {
+
+    @Param({"1048576", "67108864", "1073741824"})
+    public long size;
+
+    private Path dir;
+    private String file;
+    private Path output;
+    private final Terminal terminal = new Terminal();
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        dir = Files.createTempDirectory("cat-bench");
+        file = BenchmarkFiles.textFile(dir, "input.log", size).toString();
+        output = dir.resolve("output.log");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public void catToFile() throws IOException {
+        try (OutputSink out = new OutputSink(FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), true)) {
+            terminal.cat(new Arguments(dir, new String[] {file}, null), null, out);
+        }
+    }
+
+    @Benchmark
+    public void catNumberedToStream() throws IOException {
+        try (OutputSink out = new OutputSink(Channels.newChannel(OutputStream.nullOutputStream()), true)) {
+            terminal.cat(new Arguments(dir, new String[] {"-n", file}, null), null, out);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package CLI;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// cp -r of a synthetic tree of many small files, with 1 worker and with several
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"1", "8"})
+    public int jobs;
+
+    @Param({"100"})
+    public int directories;
+
+    @Param({"100"})
+    public int filesPerDirectory;
+
+    private Path dir;
+    private Path source;
+    private Path destination;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        dir = Files.createTempDirectory("cp-bench");
+        source = BenchmarkFiles.tree(dir.resolve("source"), directories, filesPerDirectory, 4096);
+    }
+
+    @Setup(Level.Invocation)
+    public void newDestination() throws IOException {
+        destination = Files.createTempDirectory(dir, "copy");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDestination() throws IOException {
+        BenchmarkFiles.delete(destination);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public CopyEngine copyTree() throws IOException {
+        CopyEngine engine = new CopyEngine(jobs, new LargeFileCopier(jobs));
+        try {
+            engine.copyTree(source, destination);
+        } finally {
+            engine.shutdown();
+        }
+        return engine;
+    }
+}
@@ -0,0 +1,43 @@
+package CLI;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// grep over a generated 256 MB log file: literal (Horspool) search against the regex fallback
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GrepBenchmark {
+
+    @Param({"literal", "regex"})
+    public String mode;
+
+    private Path dir;
+    private Path file;
+    private GrepEngine engine;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        dir = Files.createTempDirectory("grep-bench");
+        file = BenchmarkFiles.textFile(dir, "input.log", 256L * 1024 * 1024);
+        String pattern = mode.equals("literal") ? "GET /index.html" : "GET.*404";
+        engine = new GrepEngine(pattern, false, false, true, false, false, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public long count() throws IOException {
+        return engine.search(file, "input.log", OutputStream.nullOutputStream());
+    }
+}
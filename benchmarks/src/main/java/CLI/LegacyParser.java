@@ -0,0 +1,42 @@
+package CLI;
+
+// The parser as it was before the single-pass lexer (regex split, two scans, args copy),
+// kept only as the baseline of ParserBenchmark.
+class LegacyParser {
+    String commandName;
+    String[] args;
+    String redirectFile;
+    boolean appendMode;
+
+    boolean parse(String command) {
+        if (command == null || command.trim().isEmpty()) {
+            return false;
+        }
+        String[] tokens = command.trim().split("\\s+");
+        commandName = tokens[0];
+        redirectFile = null;
+        appendMode = false;
+
+        int argCount = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals(">") || tokens[i].equals(">>")) break;
+            argCount++;
+        }
+        args = new String[argCount];
+        for (int i = 1; i <= argCount; i++) {
+            args[i - 1] = tokens[i];
+        }
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].equals(">") || tokens[i].equals(">>")) {
+                appendMode = tokens[i].equals(">>");
+                if (i + 1 < tokens.length) {
+                    redirectFile = tokens[i + 1];
+                } else {
+                    return false;
+                }
+                break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,33 @@
+package CLI;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Parse throughput for typical command lines: the single-pass lexer against the old
+// split-based parser (LegacyParser)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"pwd", "cp -r build/output /backup/output --jobs 8", "cat access.log > lines.txt"})
+    public String line;
+
+    private final Parser parser = new Parser();
+    private final LegacyParser legacy = new LegacyParser();
+
+    @Benchmark
+    public Object parse() {
+        parser.parse(line);
+        return parser.getCommandLine();
+    }
+
+    @Benchmark
+    public Object parseLegacy() {
+        legacy.parse(line);
+        return legacy.args;
+    }
+}
@@ -0,0 +1,39 @@
+package CLI;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// wc over generated log files from 1 MB to 1 GB
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WcBenchmark {
+
+    @Param({"1048576", "67108864", "1073741824"})
+    public long size;
+
+    private Path dir;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        dir = Files.createTempDirectory("wc-bench");
+        file = BenchmarkFiles.textFile(dir, "input.log", size);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public WordCounter.Counts count() throws IOException {
+        return WordCounter.count(file);
+    }
+}
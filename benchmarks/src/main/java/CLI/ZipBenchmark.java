@@ -0,0 +1,61 @@
+package CLI;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// zip -r then unzip of a generated tree (small files plus one large log)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"1", "8"})
+    public int jobs;
+
+    private Path dir;
+    private Path source;
+    private Path archive;
+    private Path extracted;
+    private final Terminal terminal = new Terminal();
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        dir = Files.createTempDirectory("zip-bench");
+        source = BenchmarkFiles.tree(dir.resolve("source"), 20, 100, 4096);
+        BenchmarkFiles.textFile(source, "large.log", 64L * 1024 * 1024);
+    }
+
+    @Setup(Level.Invocation)
+    public void newOutput() throws IOException {
+        archive = dir.resolve("archive.zip");
+        extracted = Files.createTempDirectory(dir, "unzip");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        Files.deleteIfExists(archive);
+        BenchmarkFiles.delete(extracted);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException {
+        String threads = String.valueOf(jobs);
+        try (OutputSink out = new OutputSink(Channels.newChannel(OutputStream.nullOutputStream()), true)) {
+            terminal.zip(new String[] {"-r", "--jobs", threads, archive.toString(), source.toString()}, out);
+            terminal.unzip(new String[] {"--jobs", threads, archive.toString(), "-d", extracted.toString()}, out);
+        }
+    }
+}
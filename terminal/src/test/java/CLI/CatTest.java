@@ -0,0 +1,68 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CatTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void files() throws IOException {
+        shell = new TerminalFixture(dir);
+        shell.write("a.txt", "one\ntwo\n");
+        shell.write("b.txt", "three");
+    }
+
+    @Test
+    void filesInOrder() throws IOException {
+        assertEquals("one\ntwo\nthree", shell.run("cat a.txt b.txt"));
+        assertEquals("threeone\ntwo\n", shell.run("cat b.txt a.txt"));
+        assertEquals("", shell.run("cat"));
+        assertEquals("Error: invalid number of arguments\n", shell.errors());
+    }
+
+    @Test
+    void largerThanOneChunk() throws IOException {
+        String big = "0123456789abcdef\n".repeat(3 * Terminal.CHUNK_SIZE / 17 + 5);
+        shell.write("big.txt", big);
+        assertEquals(big, shell.run("cat big.txt"));
+        assertEquals(big, shell.run("cat big.txt | cat"));
+        String numbered = shell.run("cat -n big.txt");
+        int lines = big.length() / 17;
+        assertTrue(numbered.endsWith(String.format("%6d\t0123456789abcdef\n", lines)));
+        assertEquals(lines, numbered.split("\n").length);
+    }
+
+    @Test
+    void numberLinesAcrossFiles() throws IOException {
+        // The last line of b.txt has no newline: the next file goes on with it
+        assertEquals("     1\tone\n     2\ttwo\n     3\tthreeone\n     4\ttwo\n",
+                shell.run("cat -n a.txt b.txt a.txt"));
+        assertEquals("     1\tone\n     2\ttwo\n", shell.run("cat a.txt | cat -n"));
+    }
+
+    @Test
+    void showAll() throws IOException {
+        shell.write("odd.txt", "a\tb\r\n\u007f\u0001é\n");
+        assertEquals("a^Ib^M$\n^?^AM-CM-)$\n", shell.run("cat -A odd.txt"));
+        assertEquals("     1\ta^Ib^M$\n     2\t^?^AM-CM-)$\n", shell.run("cat -n -A odd.txt"));
+    }
+
+    @Test
+    void missingFilesDoNotStopTheOthers() throws IOException {
+        shell.write("sub/c.txt", "c\n");
+        assertEquals("one\ntwo\nc\n", shell.run("cat a.txt missing.txt sub sub/c.txt"));
+        String errors = shell.errors();
+        assertTrue(errors.contains("file does not exist"), errors);
+        assertTrue(errors.contains("sub is a directory"), errors);
+        assertEquals(1, shell.status());
+    }
+}
@@ -0,0 +1,66 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChecksumTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void files() throws IOException {
+        shell = new TerminalFixture(dir);
+        shell.write("hello.txt", "hello");
+        shell.write("sub/big.bin", "0123456789".repeat(300_000));
+    }
+
+    @Test
+    void knownValues() throws IOException {
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824  hello.txt\n",
+                shell.run("sha256sum hello.txt"));
+        assertEquals("5d41402abc4b2a76b9719d911017c592  hello.txt\n", shell.run("md5sum hello.txt"));
+        assertEquals("3610a686  hello.txt\n", shell.run("crc32 hello.txt"));
+        assertEquals("3610a686  -\n", shell.run("cat hello.txt | crc32"));
+    }
+
+    @Test
+    void crc32OfALargeFileIsTheZipOne() throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(dir.resolve("sub/big.bin")));
+        assertEquals(String.format("%08x  sub/big.bin\n", crc.getValue()), shell.run("crc32 -r sub"));
+    }
+
+    @Test
+    void manifest() throws IOException {
+        Files.writeString(dir.resolve("sums"), shell.run("sha256sum hello.txt sub/big.bin"));
+        assertEquals("hello.txt: OK\nsub/big.bin: OK\n", shell.run("sha256sum -c sums"));
+        assertEquals(0, shell.status());
+
+        shell.write("hello.txt", "hellO");
+        assertEquals("hello.txt: FAILED\nsub/big.bin: OK\n", shell.run("sha256sum -c sums"));
+        assertEquals(1, shell.status());
+    }
+
+    @Test
+    void cacheFollowsChanges() throws IOException {
+        String first = shell.run("md5sum --cache=hashes hello.txt sub/big.bin");
+        assertTrue(Files.isRegularFile(dir.resolve("hashes")));
+        assertEquals(first, shell.run("md5sum --cache=hashes hello.txt sub/big.bin"));
+
+        // Another size: the cached hash is not used
+        shell.write("hello.txt", "changed");
+        String changed = shell.run("md5sum --cache=hashes hello.txt");
+        assertEquals(shell.run("md5sum hello.txt"), changed);
+        assertNotEquals(first.substring(0, 32), changed.substring(0, 32));
+    }
+}
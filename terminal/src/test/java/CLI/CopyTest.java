@@ -0,0 +1,100 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CopyTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void tree() throws IOException {
+        shell = new TerminalFixture(dir);
+        // More files than the work queue holds (jobs * 64), in nested directories
+        for (int d = 0; d < 6; d++) {
+            for (int f = 0; f < 50; f++) {
+                shell.write("src/d" + d + "/sub/f" + f + ".txt", "file " + d + "/" + f + "\n".repeat(f));
+            }
+        }
+        shell.write("src/empty.txt", "");
+        Files.createDirectories(dir.resolve("src/no/files"));
+    }
+
+    // Every path below root with the content of the files, to compare two trees
+    private static List<String> listing(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.map(path -> {
+                try {
+                    String name = root.relativize(path).toString();
+                    return Files.isDirectory(path) ? name + "/" : name + "=" + Files.readString(path);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void copiesTheWholeTree() throws IOException {
+        String summary = shell.run("cp -r --jobs 2 src dst");
+        assertEquals(0, shell.status(), shell.errors());
+        assertTrue(summary.startsWith("Copied 301 files, 15 directories"), summary);
+        assertEquals(listing(dir.resolve("src")), listing(dir.resolve("dst")));
+
+        // A second copy overwrites, into a directory that already exists
+        shell.write("src/d0/sub/f0.txt", "changed");
+        shell.run("cp -r src dst");
+        assertEquals("changed", shell.read("dst/d0/sub/f0.txt"));
+    }
+
+    @Test
+    void updateOnlyCopiesWhatChanged() throws IOException {
+        shell.run("sync src dst");
+        shell.write("src/d1/sub/f1.txt", "new content");
+        shell.write("dst/extra.txt", "not in src");
+        String summary = shell.run("cp -r -u --delete src dst");
+        assertTrue(summary.startsWith("Copied 1 files"), summary);
+        assertTrue(summary.contains("\nSkipped 300 unchanged files"), summary);
+        assertTrue(summary.contains("\nDeleted 1 extraneous entries"), summary);
+        assertEquals(listing(dir.resolve("src")), listing(dir.resolve("dst")));
+    }
+
+    @Test
+    void errorsAreCountedAndTheFirstOnesListed() throws IOException {
+        // Every file is its own destination
+        String summary = shell.run("cp -r src/d2 src/d2");
+        assertEquals(1, shell.status());
+        assertTrue(summary.startsWith("Copied 0 files"), summary);
+        assertTrue(summary.contains("\n50 error(s):\n  '"), summary);
+        assertTrue(summary.contains("are the same file"), summary);
+        assertEquals(1 + FileErrors.MAX_LISTED + 1, summary.split("\n  ").length, summary);
+        assertTrue(summary.endsWith("\n  ... and " + (50 - FileErrors.MAX_LISTED) + " more\n"), summary);
+    }
+
+    @Test
+    void badArguments() throws IOException {
+        shell.run("cp -r src");
+        assertEquals("Error: cp -r requires exactly two arguments\n", shell.errors());
+        shell.run("cp -r src a b");
+        assertEquals("Error: cp -r requires exactly two arguments\n", shell.errors());
+        shell.run("cp -r missing dst");
+        assertEquals("Error: Source not found\n", shell.errors());
+        shell.run("cp -r --jobs 0 src dst");
+        assertEquals("Error: --jobs must be at least 1\n", shell.errors());
+        shell.run("cp --delete src/empty.txt dst.txt");
+        assertEquals("Error: --delete only works with cp -r\n", shell.errors());
+        assertFalse(Files.exists(dir.resolve("dst")));
+    }
+}
@@ -0,0 +1,77 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DuTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void tree() throws IOException {
+        shell = new TerminalFixture(dir);
+        shell.write("tree/a/one.bin", "x".repeat(10_000));
+        shell.write("tree/a/deep/two.bin", "x".repeat(20_000));
+        shell.write("tree/b/three.bin", "x".repeat(30_000));
+    }
+
+    // The size du printed for a directory
+    private long filesIn(String output, String directory) {
+        for (String line : output.split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields[1].equals(directory)) {
+                return Long.parseLong(fields[0]);
+            }
+        }
+        throw new AssertionError(directory + " not in " + output);
+    }
+
+    @Test
+    void sizesAddUp() throws IOException {
+        String out = shell.run("du --apparent-size tree");
+        long a = filesIn(out, "tree/a");
+        long deep = filesIn(out, "tree/a/deep");
+        long b = filesIn(out, "tree/b");
+        assertTrue(deep >= 20, out);
+        assertTrue(a >= deep + 10, out);
+        // Each line is rounded up to a KiB on its own
+        assertTrue(filesIn(out, "tree") >= a + b - 1, out);
+        assertEquals(filesIn(out, "tree") + "\ttree\n", shell.run("du -s --apparent-size tree"));
+    }
+
+    @Test
+    void hardLinksCountOnce() throws IOException {
+        String before = shell.run("du --apparent-size tree");
+        Files.createLink(dir.resolve("tree/b/link.bin"), dir.resolve("tree/a/one.bin"));
+        String after = shell.run("du --apparent-size tree");
+        assertEquals(filesIn(before, "tree"), filesIn(after, "tree"), after);
+    }
+
+    @Test
+    void cacheForgetsRemovedDirectories() throws IOException {
+        Path cache = dir.resolve("du.cache");
+        String first = shell.run("du --cache=du.cache tree");
+        assertEquals(first, shell.run("du --cache=du.cache tree"));
+        assertTrue(contains(cache, dir.resolve("tree/a/deep").toString()));
+
+        shell.run("rm -r tree/a/deep");
+        String second = shell.run("du --cache=du.cache tree");
+        assertFalse(second.contains("tree/a/deep"), second);
+        assertFalse(contains(cache, dir.resolve("tree/a/deep").toString()));
+        assertTrue(contains(cache, dir.resolve("tree/b").toString()));
+    }
+
+    private static boolean contains(Path file, String text) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1).contains(text);
+    }
+}
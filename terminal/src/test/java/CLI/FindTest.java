@@ -0,0 +1,70 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FindTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void tree() throws IOException {
+        shell = new TerminalFixture(dir);
+        shell.write("a.txt", "hello");
+        shell.write("src/b.txt", "x".repeat(3000));
+        shell.write("src/c.md", "");
+        shell.write("build/out.txt", "");
+    }
+
+    // The workers print in no particular order
+    private List<String> find(String args) throws IOException {
+        String[] lines = shell.run("find " + args).split("\n");
+        Arrays.sort(lines);
+        return Arrays.asList(lines);
+    }
+
+    @Test
+    void name() throws IOException {
+        assertEquals(List.of("./a.txt", "./build/out.txt", "./src/b.txt"), find(". -name '*.txt'"));
+    }
+
+    @Test
+    void sizeAndType() throws IOException {
+        assertEquals(List.of("./src/b.txt"), find(". -type f -size +2k"));
+        assertEquals(List.of("./a.txt"), find(". -type f -size 5c"));
+    }
+
+    @Test
+    void prune() throws IOException {
+        assertEquals(List.of("./a.txt", "./src/b.txt"), find(". -prune build -name '*.txt'"));
+    }
+
+    @Test
+    void missingSizeValues() throws IOException {
+        for (String value : new String[]{"''", "+", "-", "k", "+k", "12x"}) {
+            shell.run("find . -size " + value);
+            assertEquals(1, shell.status(), value);
+            assertTrue(shell.errors().startsWith("Error: find: bad value for -size"), value);
+        }
+        shell.run("find . -mtime ''");
+        assertTrue(shell.errors().startsWith("Error: find: bad value for -mtime"));
+    }
+
+    @Test
+    void missingRoot() throws IOException {
+        shell.run("find nowhere");
+        assertEquals(1, shell.status());
+        assertTrue(Files.notExists(dir.resolve("nowhere")));
+        assertTrue(shell.errors().contains("No such file or directory"));
+    }
+}
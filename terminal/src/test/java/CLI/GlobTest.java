@@ -0,0 +1,111 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GlobTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void tree() throws IOException {
+        shell = new TerminalFixture(dir);
+        for (String name : new String[]{"b.txt", "a.txt", "c.log", ".hidden.txt", "star*.txt",
+                "src/x.txt", "src/deep/y.txt", "src/.cache/z.txt", "doc/x.txt"}) {
+            shell.write(name, name + "\n");
+        }
+    }
+
+    // The words of a command line once the Parser marked its globs
+    private String[] expand(String line) {
+        Parser parser = new Parser();
+        assertTrue(parser.parse(line));
+        CommandLine.Command command = parser.getCommandLine().get(0);
+        return (command.patterns == null) ? command.args : Glob.expand(dir, command.args, command.patterns);
+    }
+
+    @Test
+    void expansionIsSortedPerPattern() {
+        assertArrayEquals(new String[]{"a.txt", "b.txt", "star*.txt"}, expand("ls *.txt"));
+        assertArrayEquals(new String[]{"c.log", "a.txt", "b.txt"}, expand("ls *.log [ab].txt"));
+        assertArrayEquals(new String[]{"doc/x.txt", "src/x.txt"}, expand("ls */x.txt"));
+        assertArrayEquals(new String[]{"a.txt", "b.txt"}, expand("ls ?.txt"));
+    }
+
+    @Test
+    void hiddenNamesNeedADot() {
+        assertArrayEquals(new String[]{".hidden.txt"}, expand("ls .*.txt"));
+        assertArrayEquals(new String[]{"src/deep/y.txt", "src/x.txt"}, expand("ls src/**.txt"));
+        assertArrayEquals(new String[]{"src/.cache/z.txt"}, expand("ls src/.*/*.txt"));
+    }
+
+    @Test
+    void doubleStarAlsoMatchesTheTop() {
+        assertArrayEquals(new String[]{"src/deep/y.txt", "src/x.txt"}, expand("ls src/**/*.txt"));
+        assertArrayEquals(new String[]{"doc/x.txt", "src/x.txt"}, expand("ls **/x.txt"));
+    }
+
+    @Test
+    void noMatchStaysAsTyped() {
+        assertArrayEquals(new String[]{"*.none", "nodir/*.txt"}, expand("ls *.none nodir/*.txt"));
+        // Not a valid pattern: no match either
+        assertArrayEquals(new String[]{"[a.txt"}, expand("ls [a.txt"));
+    }
+
+    @Test
+    void quotedAndEscapedCharsAreLiteral() {
+        assertArrayEquals(new String[]{"star*.txt"}, expand("ls star\\*.txt"));
+        assertArrayEquals(new String[]{"star*.txt"}, expand("ls 'star'*.txt"));
+        assertArrayEquals(new String[]{"*.txt"}, expand("ls '*.txt'"));
+        assertArrayEquals(new String[]{"a.txt", "b.txt", "star*.txt"}, expand("ls \"\"*.txt"));
+    }
+
+    @Test
+    void argumentsExpandOnTheFly() {
+        String[] words = {"-r", "*.txt", "plain", "*.none", "src/*.txt"};
+        String[] patterns = {null, "*.txt", null, "*.none", "src/*.txt"};
+        List<String> seen = new ArrayList<>();
+        List<Integer> from = new ArrayList<>();
+        try (Arguments arguments = new Arguments(dir, words, patterns, true)) {
+            arguments.skip(0);
+            assertTrue(arguments.hasOperands());
+            while (arguments.hasNext()) {
+                String next = arguments.next();
+                seen.add(next + (arguments.expanded() ? "" : "!"));
+                from.add(arguments.word());
+            }
+        }
+        assertEquals(List.of("a.txt", "b.txt", "star*.txt", "plain!", "*.none!", "src/x.txt"), seen);
+        assertEquals(List.of(1, 1, 1, 2, 3, 4), from);
+
+        try (Arguments options = new Arguments(dir, new String[]{"-n", "5"}, null)) {
+            options.skip(0);
+            options.skip(1);
+            assertFalse(options.hasOperands());
+            assertFalse(options.hasNext());
+        }
+    }
+
+    @Test
+    void commandsSeeTheMatches() throws IOException {
+        assertEquals("a.txt\nb.txt\n", shell.run("cat [ab].txt"));
+        shell.run("rm *.txt");
+        assertEquals(0, shell.status(), shell.errors());
+        assertFalse(Files.exists(dir.resolve("a.txt")));
+        assertFalse(Files.exists(dir.resolve("star*.txt")));
+        assertTrue(Files.exists(dir.resolve(".hidden.txt")));
+        assertTrue(Files.exists(dir.resolve("c.log")));
+    }
+}
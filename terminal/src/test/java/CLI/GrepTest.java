@@ -0,0 +1,109 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GrepTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+    Path log;
+    String text;
+
+    @BeforeEach
+    void input() throws IOException {
+        shell = new TerminalFixture(dir);
+        // Lines of different lengths, every seventh one matches "needle"
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 500; i++) {
+            lines.append("line ").append(i).append(i % 7 == 0 ? " needle" : " hay").append(" x".repeat(i % 13)).append('\n');
+        }
+        text = lines.toString();
+        log = shell.write("input.log", text);
+    }
+
+    // grep -n computed without the engine
+    private String expected(String word) {
+        StringBuilder out = new StringBuilder();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].contains(word)) {
+                out.append(i + 1).append(':').append(lines[i]).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private String search(String pattern, boolean fixed, int segmentSize) throws IOException {
+        GrepEngine engine = new GrepEngine(pattern, false, fixed, false, false, true, false);
+        engine.segmentSize = segmentSize;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.search(log, "input.log", out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void literalAndRegexAgreeAcrossSegments() throws IOException {
+        String expected = expected("needle");
+        for (int segmentSize : new int[]{64, 100, 257, 4096, GrepEngine.SEGMENT_SIZE}) {
+            assertEquals(expected, search("needle", false, segmentSize), "literal, segment " + segmentSize);
+            assertEquals(expected, search("need(le)", false, segmentSize), "regex, segment " + segmentSize);
+            assertEquals(expected, search("ne.dle$|ne.dle ", false, segmentSize), "regex, segment " + segmentSize);
+        }
+    }
+
+    @Test
+    void fixedStringsAreNotRegexes() throws IOException {
+        shell.write("dots.txt", "a.c\nabc\n");
+        assertEquals("a.c\nabc\n", shell.run("grep a.c dots.txt"));
+        assertEquals("a.c\n", shell.run("grep -F a.c dots.txt"));
+    }
+
+    @Test
+    void pipeInput() throws IOException {
+        GrepEngine engine = new GrepEngine("needle", false, false, true, false, false, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long matches = engine.search(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), "-", out);
+        assertEquals(500 / 7, matches);
+        assertEquals(500 / 7 + "\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void severalFilesKeepTheirOrder() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            shell.write("f" + (char) ('a' + i) + ".txt", "one\nneedle " + i + "\n");
+            expected.append("f").append((char) ('a' + i)).append(".txt:needle ").append(i).append('\n');
+            names.append(" f").append((char) ('a' + i)).append(".txt");
+        }
+        assertEquals(expected.toString(), shell.run("grep --jobs 4 needle" + names));
+        assertEquals(expected.toString(), shell.run("grep --jobs 4 needle f*.txt"));
+        assertEquals(0, shell.status());
+        shell.run("grep nothing f*.txt");
+        assertEquals(1, shell.status());
+    }
+
+    @Test
+    void jobsOption() throws IOException {
+        shell.run("grep --jobs 0 needle input.log");
+        assertEquals("Error: --jobs must be at least 1\n", shell.errors());
+        shell.run("grep --jobs x needle input.log");
+        assertEquals("Error: --jobs needs a number\n", shell.errors());
+        shell.run("grep --jobs");
+        assertEquals("Error: --jobs needs a number\n", shell.errors());
+        shell.run("grep -n");
+        assertEquals("Error: grep needs a pattern\n", shell.errors());
+        shell.run("grep -q needle input.log");
+        assertTrue(shell.errors().startsWith("Error: grep: unknown option -q"));
+    }
+}
@@ -0,0 +1,114 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HeadTailTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void lines() throws IOException {
+        shell = new TerminalFixture(dir);
+        // Several read blocks (Terminal.CHUNK_SIZE) of numbered lines
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 50_000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        shell.write("big.txt", text.toString());
+    }
+
+    @Test
+    void lastLinesAcrossBlocks() throws IOException {
+        assertEquals("line 49998\nline 49999\nline 50000\n", shell.run("tail -n 3 big.txt"));
+        assertEquals("line 50000\n", shell.run("tail -1 big.txt"));
+        assertEquals("", shell.run("tail -n 0 big.txt"));
+        String last = shell.run("tail -n 20000 big.txt");
+        assertTrue(last.startsWith("line 30001\n"));
+        assertEquals(20000, last.split("\n").length);
+    }
+
+    @Test
+    void firstLines() throws IOException {
+        assertEquals("line 1\nline 2\n", shell.run("head -n 2 big.txt"));
+        assertEquals("line 1\nline 2\nline 3\n", shell.run("cat big.txt | head -3"));
+    }
+
+    @Test
+    void noFinalNewline() throws IOException {
+        shell.write("short.txt", "a\nb\nc");
+        assertEquals("b\nc", shell.run("tail -n 2 short.txt"));
+        assertEquals("a\nb\nc", shell.run("tail short.txt"));
+    }
+
+    @Test
+    void badOptions() throws IOException {
+        shell.run("tail -n x big.txt");
+        assertEquals("Error: tail: bad line count in x\n", shell.errors());
+        shell.run("tail -f");
+        assertEquals("Error: tail -f needs a file\n", shell.errors());
+        shell.run("tail -f big.txt big.txt");
+        assertEquals("Error: tail -f follows one file\n", shell.errors());
+    }
+
+    @Test
+    void followsAcrossRotation() throws Exception {
+        Path log = shell.write("app.log", "a\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputSink sink = new OutputSink(Channels.newChannel(out), false);
+        JobControl control = new JobControl();
+        shell.terminal.control = control;
+        Thread follower = new Thread(() -> {
+            try {
+                shell.terminal.tail(new String[]{"-f", "app.log"}, null, sink);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        follower.start();
+        try {
+            append(log, "b\n");
+            await(out, "a\nb\n");
+
+            // Written just before the rename: still comes out, before the new file
+            append(log, "c\n");
+            Files.move(log, dir.resolve("app.log.1"));
+            Files.writeString(log, "d\n");
+            await(out, "a\nb\nc\nd\n");
+
+            append(log, "e\n");
+            await(out, "a\nb\nc\nd\ne\n");
+        } finally {
+            control.cancel();
+            follower.join(10_000);
+        }
+        assertFalse(follower.isAlive());
+        assertTrue(shell.errors().contains("tail: cancelled"));
+    }
+
+    private static void append(Path file, String text) throws IOException {
+        Files.writeString(file, text, StandardOpenOption.APPEND);
+    }
+
+    // Waits until the follower wrote exactly "expected"
+    private static void await(ByteArrayOutputStream out, String expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!out.toString(StandardCharsets.UTF_8).equals(expected) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+    }
+}
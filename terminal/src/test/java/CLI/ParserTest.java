@@ -0,0 +1,131 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParserTest {
+    Parser parser;
+    ByteArrayOutputStream errors;
+
+    @BeforeEach
+    void parser() {
+        parser = new Parser();
+        errors = new ByteArrayOutputStream();
+        parser.err = new PrintStream(errors, true, StandardCharsets.UTF_8);
+    }
+
+    private CommandLine.Command parse(String line) {
+        assertTrue(parser.parse(line), line);
+        assertEquals(1, parser.getCommandLine().size(), line);
+        return parser.getCommandLine().get(0);
+    }
+
+    private String error(String line) {
+        assertFalse(parser.parse(line), line);
+        String text = errors.toString(StandardCharsets.UTF_8);
+        errors.reset();
+        return text;
+    }
+
+    @Test
+    void quotesAndEscapes() {
+        CommandLine.Command command = parse("cat  'a b'  \"c \\\"d\\\" \\x\"  e\\ f '' \"it's\"\tg'h'\"i\"");
+        assertEquals("cat", command.name);
+        assertArrayEquals(new String[]{"a b", "c \"d\" \\x", "e f", "", "it's", "ghi"}, command.args);
+        assertNull(command.patterns);
+
+        assertArrayEquals(new String[]{"a|b", "<", ">x", "&"}, parse("cat 'a|b' \\< \">x\" '&'").args);
+        assertArrayEquals(new String[]{"-"}, parse("cat -\\").args);
+    }
+
+    @Test
+    void globsAreKeptWithTheWord() {
+        CommandLine.Command command = parse("rm *.tmp '*.log' a\\*b* plain {x}*");
+        assertArrayEquals(new String[]{"*.tmp", "*.log", "a*b*", "plain", "{x}*"}, command.args);
+        assertArrayEquals(new String[]{"*.tmp", null, "a\\*b*", null, "\\{x\\}*"}, command.patterns);
+    }
+
+    @Test
+    void redirections() {
+        CommandLine.Command command = parse("sort<in.txt -r >out.txt 2>>err.txt");
+        assertArrayEquals(new String[]{"-r"}, command.args);
+        assertEquals("in.txt", command.inputFile);
+        assertEquals("out.txt", command.outputFile);
+        assertFalse(command.append);
+        assertEquals("err.txt", command.errorFile);
+        assertTrue(command.errorAppend);
+
+        command = parse("cat a >> 'my file' 2> e");
+        assertEquals("my file", command.outputFile);
+        assertTrue(command.append);
+        assertEquals("e", command.errorFile);
+        assertFalse(command.errorAppend);
+
+        // Only a 2 on its own is the error stream
+        command = parse("cat a2>b");
+        assertArrayEquals(new String[]{"a2"}, command.args);
+        assertEquals("b", command.outputFile);
+        assertNull(command.errorFile);
+    }
+
+    @Test
+    void pipelineAndBackground() {
+        assertTrue(parser.parse("cat a|grep x | wc -l > n &"));
+        CommandLine line = parser.getCommandLine();
+        assertEquals(3, line.size());
+        assertTrue(line.background);
+        assertEquals("cat", line.get(0).name);
+        assertArrayEquals(new String[]{"x"}, line.get(1).args);
+        assertEquals("n", line.get(2).outputFile);
+
+        // The descriptor is reused: nothing is left from the line before
+        CommandLine.Command command = parse("pwd");
+        assertFalse(parser.getCommandLine().background);
+        assertEquals(0, command.args.length);
+        assertNull(command.outputFile);
+    }
+
+    @Test
+    void syntaxErrors() {
+        assertEquals("Error: missing closing quote (')\n", error("cat 'a b"));
+        assertEquals("Error: missing closing quote (\")\n", error("cat \"a"));
+        assertEquals("Error: Missing file name after redirection.\n", error("cat a >"));
+        assertEquals("Error: Missing file name after redirection.\n", error("cat a > | wc"));
+        assertEquals("Error: Missing command before |\n", error("| wc"));
+        assertEquals("Error: Missing command after |\n", error("cat a |"));
+        assertEquals("Error: Missing command\n", error("> out"));
+        assertEquals("Error: & is only allowed at the end of the line\n", error("cat a & wc"));
+        assertEquals("", error("   "));
+    }
+
+    @Test
+    void redirectionsWriteTheFiles(@TempDir Path dir) throws IOException {
+        TerminalFixture shell = new TerminalFixture(dir);
+        shell.write("a b.txt", "one\ntwo\n");
+        assertEquals("", shell.run("cat 'a b.txt' > out.txt"));
+        shell.run("cat \"a b.txt\" >> out.txt");
+        assertEquals("one\ntwo\none\ntwo\n", shell.read("out.txt"));
+
+        shell.run("sort -r < out.txt > sorted.txt");
+        assertEquals("two\ntwo\none\none\n", shell.read("sorted.txt"));
+
+        shell.run("cat missing.txt 2> err.txt");
+        shell.run("cat missing.txt 2>> err.txt");
+        assertEquals("", shell.errors());
+        String err = shell.read("err.txt");
+        assertEquals(2, err.split("\n").length, err);
+        assertTrue(err.contains("missing.txt"), err);
+    }
+}
@@ -0,0 +1,128 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SortTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+    List<String> lines;
+
+    @BeforeEach
+    void input() throws IOException {
+        shell = new TerminalFixture(dir);
+        // Many repeated values, so equal keys and uniq groups are common
+        Random random = new Random(11);
+        lines = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            lines.add("k" + random.nextInt(300) + "," + (random.nextInt(2000) - 1000));
+        }
+        shell.write("input.txt", String.join("\n", lines) + "\n");
+    }
+
+    private static String joined(List<String> lines) {
+        return lines.isEmpty() ? "" : String.join("\n", lines) + "\n";
+    }
+
+    // The sort run files left in the temp directory
+    private static long runFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(file -> file.getFileName().toString().startsWith("cli-sort-")).count();
+        }
+    }
+
+    @Test
+    void spilledRunsMergeInOrder() throws IOException {
+        long before = runFiles();
+        List<String> sorted = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(String::compareTo, 97)) {
+            for (String line : lines) {
+                sorter.add(line);
+            }
+            sorter.forEachSorted(sorted::add);
+            assertTrue(runFiles() >= before + lines.size() / 97, "the records were spilled");
+        }
+        assertEquals(before, runFiles());
+        List<String> expected = new ArrayList<>(lines);
+        Collections.sort(expected);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    void smallMemoryGivesTheSameOutput() throws IOException {
+        List<String> expected = new ArrayList<>(lines);
+        Collections.sort(expected);
+        assertEquals(joined(expected), shell.run("sort input.txt"));
+        assertEquals(joined(expected), shell.run("sort -S 2K input.txt"));
+        assertEquals(joined(expected), shell.run("cat input.txt | sort -S 1K"));
+
+        Collections.reverse(expected);
+        assertEquals(joined(expected), shell.run("sort -r -S 1K input.txt"));
+    }
+
+    @Test
+    void numericFieldKey() throws IOException {
+        List<String> expected = new ArrayList<>(lines);
+        expected.sort((a, b) -> {
+            int result = Integer.compare(Integer.parseInt(a.split(",")[1]), Integer.parseInt(b.split(",")[1]));
+            return (result != 0) ? result : a.compareTo(b);
+        });
+        assertEquals(joined(expected), shell.run("sort -n -t , -k 2 -S 1K input.txt"));
+
+        shell.write("numbers.txt", "10\n-2\n 3.5\n-0\n007\nx\n3.25\n");
+        assertEquals("-2\n-0\nx\n3.25\n 3.5\n007\n10\n", shell.run("sort -n numbers.txt"));
+    }
+
+    @Test
+    void uniqAfterSort() throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (String line : lines) {
+            keys.add(line.substring(0, line.indexOf(',')));
+        }
+        Collections.sort(keys);
+        shell.write("keys.txt", joined(keys));
+
+        StringBuilder counted = new StringBuilder();
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < keys.size(); ) {
+            int j = i;
+            while (j < keys.size() && keys.get(j).equals(keys.get(i))) {
+                j++;
+            }
+            counted.append(String.format("%7d %s\n", j - i, keys.get(i)));
+            if (j - i > 1) {
+                repeated.append(keys.get(i)).append('\n');
+            }
+            i = j;
+        }
+        assertEquals(counted.toString(), shell.run("uniq -c keys.txt"));
+        assertEquals(repeated.toString(), shell.run("sort -S 1K keys.txt | uniq -d"));
+        assertEquals(counted.toString(), shell.run("sort -r keys.txt | sort | uniq -c"));
+    }
+
+    @Test
+    void badOptions() throws IOException {
+        shell.run("sort -S input.txt");
+        assertTrue(shell.errors().startsWith("Error: sort: bad number"));
+        shell.run("sort -k");
+        assertEquals("Error: sort: -k needs a value\n", shell.errors());
+        shell.run("sort -k 0 input.txt");
+        assertEquals("Error: sort: fields are numbered from 1\n", shell.errors());
+        shell.run("uniq a b");
+        assertTrue(shell.errors().startsWith("Error: uniq takes at most one file"));
+    }
+}
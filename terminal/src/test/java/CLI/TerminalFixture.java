@@ -0,0 +1,54 @@
+package CLI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A Terminal working in a test directory. Runs command lines and keeps what they print,
+// the output and the error messages separately.
+class TerminalFixture {
+    final Path dir;
+    final Terminal terminal = new Terminal();
+    private final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+    TerminalFixture(Path dir) {
+        this.dir = dir;
+        terminal.setErrorStream(new PrintStream(errors, true, StandardCharsets.UTF_8));
+        terminal.cd(new String[]{dir.toString()});
+    }
+
+    // Runs one command line and returns its output
+    String run(String line) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputSink sink = new OutputSink(Channels.newChannel(out), false);
+        terminal.execute(line, sink);
+        sink.flush();
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    // Exit status of the last command line
+    int status() {
+        return terminal.status;
+    }
+
+    // The error messages printed so far, cleared on every call
+    String errors() {
+        String text = errors.toString(StandardCharsets.UTF_8);
+        errors.reset();
+        return text;
+    }
+
+    Path write(String name, String content) throws IOException {
+        Path file = dir.resolve(name);
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, content);
+    }
+
+    String read(String name) throws IOException {
+        return Files.readString(dir.resolve(name));
+    }
+}
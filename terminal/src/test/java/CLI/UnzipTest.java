@@ -0,0 +1,67 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UnzipTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void archive() throws IOException {
+        shell = new TerminalFixture(dir);
+        try (OutputStream file = Files.newOutputStream(dir.resolve("z.zip"));
+             ZipOutputStream zip = new ZipOutputStream(file)) {
+            for (String name : new String[]{"a[b", "docs/one.txt", "docs/two.txt", "docs/three.md"}) {
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(("content of " + name + "\n").getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+    }
+
+    @Test
+    void extractsEverything() throws IOException {
+        shell.run("unzip z.zip -d out");
+        assertEquals(0, shell.status(), shell.errors());
+        assertEquals("content of docs/two.txt\n", shell.read("out/docs/two.txt"));
+        assertEquals("content of a[b\n", shell.read("out/a[b"));
+    }
+
+    @Test
+    void selectsEntriesByGlob() throws IOException {
+        shell.run("unzip z.zip 'docs/*.txt' -d out");
+        assertEquals(0, shell.status(), shell.errors());
+        assertTrue(Files.exists(dir.resolve("out/docs/one.txt")));
+        assertTrue(Files.exists(dir.resolve("out/docs/two.txt")));
+        assertFalse(Files.exists(dir.resolve("out/docs/three.md")));
+    }
+
+    @Test
+    void invalidGlobSelectsTheExactName() throws IOException {
+        shell.run("unzip z.zip 'a[b' -d out");
+        assertEquals(0, shell.status(), shell.errors());
+        assertEquals("content of a[b\n", shell.read("out/a[b"));
+        assertFalse(Files.exists(dir.resolve("out/docs")));
+    }
+
+    @Test
+    void invalidGlobWithoutSuchEntryFails() throws IOException {
+        shell.run("unzip z.zip 'x[y'");
+        assertEquals(1, shell.status());
+        assertTrue(shell.errors().contains("no matching entries"));
+    }
+}
@@ -0,0 +1,100 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WcTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+
+    @BeforeEach
+    void shell() {
+        shell = new TerminalFixture(dir);
+    }
+
+    // Words of 1 to 12 chars, some of them two or three bytes long in UTF-8, between runs of
+    // spaces, tabs and newlines
+    private static String text(long bytes, long seed) {
+        Random random = new Random(seed);
+        String letters = "abcdefghijklmnopqrstuvwxyzéß€";
+        String spaces = "   \t\n\r\f";
+        StringBuilder text = new StringBuilder();
+        while (text.length() < bytes) {
+            for (int i = random.nextInt(12); i >= 0; i--) {
+                text.append(letters.charAt(random.nextInt(letters.length())));
+            }
+            for (int i = random.nextInt(3); i >= 0; i--) {
+                text.append(spaces.charAt(random.nextInt(spaces.length())));
+            }
+        }
+        return text.toString();
+    }
+
+    // wc -lwmc computed on the String
+    private static String naive(String text) {
+        long lines = 0, words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                lines++;
+            }
+            boolean space = c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+            if (!space && !inWord) {
+                words++;
+            }
+            inWord = !space;
+        }
+        return lines + " " + words + " " + text.length() + " " + text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String counts(WordCounter.Counts counts) {
+        return counts.format(true, true, true, true);
+    }
+
+    @Test
+    void rangesAreGluedInsideWords() throws IOException {
+        for (String[] halves : new String[][]{{"ab", "cd"}, {"ab ", "cd"}, {"ab", " cd"}, {"", "cd"}, {"ab\n", ""}}) {
+            WordCounter.Counts left = WordCounter.count(new ByteArrayInputStream(halves[0].getBytes(StandardCharsets.UTF_8)));
+            WordCounter.Counts right = WordCounter.count(new ByteArrayInputStream(halves[1].getBytes(StandardCharsets.UTF_8)));
+            assertEquals(naive(halves[0] + halves[1]), counts(left.append(right)), halves[0] + "|" + halves[1]);
+        }
+    }
+
+    @Test
+    void fileSplitIntoRanges() throws IOException {
+        // More than two ranges, the cuts fall anywhere: in a word, in a UTF-8 char, on a space
+        String text = text(2 * WordCounter.SPLIT_SIZE + 54321, 7);
+        Path file = dir.resolve("big.txt");
+        Files.writeString(file, text);
+        assertEquals(naive(text), counts(WordCounter.count(file)));
+        assertEquals(naive(text), counts(WordCounter.count(Files.newInputStream(file))));
+    }
+
+    @Test
+    void command() throws IOException {
+        String small = text(100_000, 3);
+        shell.write("a.txt", small);
+        shell.write("b.txt", "one two\nthree\n");
+        String[] a = naive(small).split(" ");
+        assertEquals(a[0] + " " + a[1] + " " + a[3] + " a.txt\n", shell.run("wc a.txt"));
+        assertEquals("2 3 14 b.txt\n", shell.run("wc b.txt"));
+        assertEquals("2 b.txt\n3 b.txt\n", shell.run("wc -l b.txt") + shell.run("wc -w b.txt"));
+        assertEquals("2 14\n", shell.run("cat b.txt | wc -lc"));
+        String total = (Long.parseLong(a[0]) + 2) + " " + (Long.parseLong(a[1]) + 3) + " total\n";
+        assertEquals(a[0] + " " + a[1] + " a.txt\n2 3 b.txt\n" + total, shell.run("wc -l -w a.txt b.txt"));
+
+        shell.run("wc -x a.txt");
+        assertEquals("Error: wc: unknown option -x\n", shell.errors());
+    }
+}
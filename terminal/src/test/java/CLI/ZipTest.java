@@ -0,0 +1,152 @@
+package CLI;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ZipTest {
+    @TempDir
+    Path dir;
+    TerminalFixture shell;
+    byte[] random;
+
+    @BeforeEach
+    void sources() throws IOException {
+        shell = new TerminalFixture(dir);
+        // Several deflate blocks (ParallelZipWriter.BLOCK_SIZE), half random and half text
+        random = new byte[3 * ParallelZipWriter.BLOCK_SIZE + 12345];
+        new Random(42).nextBytes(random);
+        byte[] text = "all work and no play\n".repeat(random.length / 42).getBytes();
+        System.arraycopy(text, 0, random, random.length / 2, text.length);
+        Files.createDirectories(dir.resolve("src"));
+        Files.write(dir.resolve("src/data.bin"), random);
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        try (InputStream in = zip.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void roundTripThroughZipFile() throws IOException {
+        shell.write("src/notes/a.txt", "first\n");
+        shell.write("src/empty.txt", "");
+        shell.run("zip -r --jobs 4 out.zip src");
+        assertEquals(0, shell.status(), shell.errors());
+
+        try (ZipFile zip = new ZipFile(dir.resolve("out.zip").toFile())) {
+            assertEquals(3, zip.size());
+            assertArrayEquals(random, read(zip, "data.bin"));
+            assertEquals("first\n", new String(read(zip, "notes/a.txt")));
+            assertEquals(0, read(zip, "empty.txt").length);
+            assertTrue(zip.getEntry("data.bin").getCompressedSize() < random.length);
+        }
+    }
+
+    @Test
+    void moreThan65535Entries() throws IOException {
+        Path small = shell.write("small.txt", "entry\n");
+        int count = 70_000;
+        try (ParallelZipWriter writer = new ParallelZipWriter(dir.resolve("many.zip"), 4)) {
+            for (int i = 0; i < count; i++) {
+                writer.addFile(small, "e/" + i + ".txt");
+            }
+        }
+        try (ZipFile zip = new ZipFile(dir.resolve("many.zip").toFile())) {
+            assertEquals(count, zip.size());
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            int seen = 0;
+            while (entries.hasMoreElements()) {
+                assertEquals("e/" + seen + ".txt", entries.nextElement().getName());
+                seen++;
+            }
+            assertEquals("entry\n", new String(read(zip, "e/69999.txt")));
+        }
+
+        shell.run("unzip many.zip 'e/6553*.txt' -d out");
+        assertEquals(0, shell.status(), shell.errors());
+        assertEquals("entry\n", shell.read("out/e/65535.txt"));
+    }
+
+    @Test
+    void archiveIsNeverItsOwnSource() throws IOException {
+        shell.write("a.txt", "a\n");
+        shell.run("zip out.zip a.txt");
+        shell.run("zip out.zip out.zip a.txt");
+        assertTrue(shell.errors().contains("out.zip: skipped, it is the archive itself"));
+        shell.run("zip out.zip ./src/../out.zip a.txt");
+        assertTrue(shell.errors().contains("skipped, it is the archive itself"));
+        try (ZipFile zip = new ZipFile(dir.resolve("out.zip").toFile())) {
+            assertEquals(1, zip.size());
+            assertNull(zip.getEntry("out.zip"));
+        }
+    }
+
+    @Test
+    void updateKeepsReplacesAndAdds() throws IOException {
+        shell.write("src/same.txt", "same\n");
+        shell.write("src/grows.txt", "short\n");
+        shell.write("src/touched.txt", "touched\n");
+        shell.write("src/edited.txt", "12345\n");
+        assertEquals("", shell.run("zip -ru out.zip src"));
+        Path archive = dir.resolve("out.zip");
+        long compressed;
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertEquals(5, zip.size());
+            compressed = zip.getEntry("data.bin").getCompressedSize();
+        }
+
+        assertEquals("zip: out.zip is up to date (5 entries)\n", shell.run("zip -ru out.zip src"));
+
+        // Another time but the same bytes: the CRC-32 says it did not change
+        FileTime later = FileTime.from(System.currentTimeMillis() + 3_600_000, TimeUnit.MILLISECONDS);
+        Files.setLastModifiedTime(dir.resolve("src/touched.txt"), later);
+        assertEquals("zip: out.zip is up to date (5 entries)\n", shell.run("zip -ru out.zip src"));
+
+        shell.write("src/grows.txt", "not so short\n");
+        shell.write("src/edited.txt", "54321\n");
+        Files.setLastModifiedTime(dir.resolve("src/edited.txt"), later);
+        shell.write("src/new/added.txt", "added\n");
+        assertEquals("zip: 3 kept, 2 updated, 1 added\n", shell.run("zip -ru --jobs 2 out.zip src"));
+        assertEquals(0, shell.status(), shell.errors());
+        assertTrue(Files.notExists(dir.resolve("out.zip.tmp")));
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertEquals(6, zip.size());
+            assertEquals("same\n", new String(read(zip, "same.txt")));
+            assertEquals("touched\n", new String(read(zip, "touched.txt")));
+            assertEquals("not so short\n", new String(read(zip, "grows.txt")));
+            assertEquals("54321\n", new String(read(zip, "edited.txt")));
+            assertEquals("added\n", new String(read(zip, "new/added.txt")));
+            // Kept entries are copied as they were compressed
+            assertEquals(compressed, zip.getEntry("data.bin").getCompressedSize());
+            assertArrayEquals(random, read(zip, "data.bin"));
+        }
+    }
+
+    @Test
+    void updateWithoutArchiveCreatesIt() throws IOException {
+        shell.run("zip -u new.zip src/data.bin");
+        assertEquals(0, shell.status(), shell.errors());
+        try (ZipFile zip = new ZipFile(dir.resolve("new.zip").toFile())) {
+            assertArrayEquals(random, read(zip, "data.bin"));
+        }
+    }
+}